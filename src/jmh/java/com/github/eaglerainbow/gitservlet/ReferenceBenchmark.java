@@ -0,0 +1,79 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Resolution of a reference name, both through the RefCache of the RepoBase
+ * (as done by the servlet) and directly with JGit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ReferenceBenchmark {
+	@Param({ "10", "10000" })
+	public int tagCount;
+
+	@Param({ "true", "false" })
+	public boolean packed;
+
+	@Param({ "master", "v7" })
+	public String ref;
+
+	private SyntheticRepository synthetic;
+	private RepoBase repoBase;
+	private Repository repo;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.synthetic = new SyntheticRepository(1, 1, 16, this.tagCount, this.packed);
+		this.repoBase = new RepoBase(this.synthetic.getBaseDir());
+		this.repo = this.repoBase.openRepository(SyntheticRepository.REPOSITORY_NAME,
+				this.repoBase.getRepository(SyntheticRepository.REPOSITORY_NAME));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.repo.close();
+		this.repoBase.shutdown();
+		this.synthetic.delete();
+	}
+
+	@Benchmark
+	public Object resolveReference() throws IOException {
+		return this.repoBase.resolveReference(SyntheticRepository.REPOSITORY_NAME, this.repo, this.ref);
+	}
+
+	@Benchmark
+	public Object findRef() throws IOException {
+		Ref found = this.repo.findRef(this.ref);
+		return found.getObjectId();
+	}
+}
@@ -0,0 +1,96 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The complete processing of a request, from the path to the transferred
+ * content, with all caches of the RepoBase warmed up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+	@Param({ "4" })
+	public int depth;
+
+	@Param({ "100" })
+	public int filesPerDirectory;
+
+	@Param({ "1024", "1048576" })
+	public int payloadSize;
+
+	@Param({ "true", "false" })
+	public boolean packed;
+
+	private SyntheticRepository synthetic;
+	private RepoBase repoBase;
+	private Log log;
+	private String path;
+	private HttpServletRequest plainRequest;
+	private HttpServletRequest conditionalRequest;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.synthetic = new SyntheticRepository(this.depth, this.filesPerDirectory, this.payloadSize, 1,
+				this.packed);
+		this.repoBase = new RepoBase(this.synthetic.getBaseDir());
+		this.log = ServletMocks.log();
+		this.path = String.format("/%s/master/%s", SyntheticRepository.REPOSITORY_NAME,
+				this.synthetic.getPayloadPath());
+		this.plainRequest = ServletMocks.request();
+		this.conditionalRequest = ServletMocks.request(Collections.singletonMap("If-None-Match",
+				"\"" + this.synthetic.getPayloadId().getName() + "\""));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.repoBase.shutdown();
+		this.synthetic.delete();
+	}
+
+	@Benchmark
+	public long process() throws IOException, LocalInternalServerException {
+		return this.process(this.plainRequest);
+	}
+
+	@Benchmark
+	public long notModified() throws IOException, LocalInternalServerException {
+		return this.process(this.conditionalRequest);
+	}
+
+	private long process(HttpServletRequest request) throws IOException, LocalInternalServerException {
+		ServletMocks.CountingOutputStream out = new ServletMocks.CountingOutputStream();
+		new ServletRequest(this.log, this.path, request, ServletMocks.response(out), this.repoBase, false)
+				.process();
+		return out.getCount();
+	}
+}
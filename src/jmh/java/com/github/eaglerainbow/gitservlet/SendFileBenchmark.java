@@ -0,0 +1,94 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jgit.lib.Repository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Transfer of a blob into the response, as a whole and as a single range.
+ * Blobs up to the maximal object size of the BlobCache are served from
+ * memory after the first invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SendFileBenchmark {
+	@Param({ "1024", "262144", "16777216" })
+	public int payloadSize;
+
+	@Param({ "true", "false" })
+	public boolean packed;
+
+	private SyntheticRepository synthetic;
+	private RepoBase repoBase;
+	private Repository repo;
+	private Log log;
+	private String etag;
+	private HttpServletRequest plainRequest;
+	private HttpServletRequest rangeRequest;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.synthetic = new SyntheticRepository(1, 1, this.payloadSize, 1, this.packed);
+		this.repoBase = new RepoBase(this.synthetic.getBaseDir());
+		this.repo = this.repoBase.openRepository(SyntheticRepository.REPOSITORY_NAME,
+				this.repoBase.getRepository(SyntheticRepository.REPOSITORY_NAME));
+		this.log = ServletMocks.log();
+		this.etag = "\"" + this.synthetic.getPayloadId().getName() + "\"";
+		this.plainRequest = ServletMocks.request();
+		this.rangeRequest = ServletMocks.request(Collections.singletonMap("Range", "bytes=512-1023"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.repo.close();
+		this.repoBase.shutdown();
+		this.synthetic.delete();
+	}
+
+	@Benchmark
+	public long sendFile() throws IOException {
+		return this.send(this.plainRequest);
+	}
+
+	@Benchmark
+	public long sendRange() throws IOException {
+		return this.send(this.rangeRequest);
+	}
+
+	private long send(HttpServletRequest request) throws IOException {
+		ServletMocks.CountingOutputStream out = new ServletMocks.CountingOutputStream();
+		ServletRequest sr = new ServletRequest(this.log, "/", request, ServletMocks.response(out), this.repoBase,
+				false);
+		sr.sendFile(this.repo, this.synthetic.getPayloadId(), this.etag, 0);
+		return out.getCount();
+	}
+}
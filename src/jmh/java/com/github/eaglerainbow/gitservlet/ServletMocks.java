@@ -0,0 +1,163 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal stand-ins for the servlet container, as far as the request
+ * pipeline needs them. Methods which are not relevant return
+ * <code>null</code>, <code>false</code> or 0.
+ */
+public class ServletMocks {
+	/**
+	 * an output stream which only counts the bytes written to it
+	 */
+	public static class CountingOutputStream extends ServletOutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.count += len;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			throw new IllegalStateException("asynchronous output is not supported by the benchmarks");
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+	}
+
+	/**
+	 * @return a log which discards all messages; as with the servlet's
+	 *         default level, debug messages are not even formatted
+	 */
+	public static Log log() {
+		GenericServlet servlet = new GenericServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void service(ServletRequest req, ServletResponse res) {
+				// not used
+			}
+
+			@Override
+			public void log(String msg) {
+				// discarded
+			}
+
+			@Override
+			public void log(String message, Throwable t) {
+				// discarded
+			}
+		};
+		Log log = new Log(servlet);
+		log.setLevel(Level.OFF);
+		return log;
+	}
+
+	/**
+	 * @param headers
+	 *            the headers of the request
+	 * @return a synchronous GET request with the given headers
+	 */
+	public static HttpServletRequest request(final Map<String, String> headers) {
+		return proxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getHeader")) {
+					return headers.get(args[0]);
+				}
+				if (name.equals("getDateHeader")) {
+					String value = headers.get(args[0]);
+					return value == null ? -1L : Long.parseLong(value);
+				}
+				if (name.equals("getMethod")) {
+					return "GET";
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * @return a synchronous GET request without any headers
+	 */
+	public static HttpServletRequest request() {
+		return request(Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * @param out
+	 *            the stream receiving the body of the response
+	 * @return a response which ignores status and headers
+	 */
+	public static HttpServletResponse response(final ServletOutputStream out) {
+		return proxy(HttpServletResponse.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getOutputStream")) {
+					return out;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(ServletMocks.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,186 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Generates bare repositories of a given shape for the benchmarks.
+ * <p>
+ * The repository has a single commit on "master". Its tree is a chain of
+ * <code>depth</code> nested directories named "sub", each of which contains
+ * <code>filesPerDirectory</code> small files; the deepest directory
+ * additionally contains the file "payload.bin" of the requested size. All
+ * content is generated from a fixed seed, so that runs are comparable.
+ */
+public class SyntheticRepository {
+	public static final String REPOSITORY_NAME = "bench";
+	public static final String PAYLOAD_NAME = "payload.bin";
+
+	private final File baseDir;
+	private final ObjectId commitId;
+	private final ObjectId payloadId;
+	private final String payloadPath;
+
+	/**
+	 * creates a RepoBase with a single repository named
+	 * {@link #REPOSITORY_NAME} in a temporary directory
+	 *
+	 * @param depth
+	 *            the number of nested directories (at least 1)
+	 * @param filesPerDirectory
+	 *            the number of small files in each directory
+	 * @param payloadSize
+	 *            the size of the payload file in bytes
+	 * @param tagCount
+	 *            the number of (lightweight) tags pointing to the commit
+	 * @param packed
+	 *            <code>true</code> if objects and references shall be packed,
+	 *            <code>false</code> if they shall stay loose
+	 * @throws IOException
+	 *             if the repository cannot be written
+	 */
+	public SyntheticRepository(int depth, int filesPerDirectory, int payloadSize, int tagCount, boolean packed)
+			throws IOException {
+		this.baseDir = Files.createTempDirectory("gitservlet-bench").toFile();
+
+		Repository repo = new FileRepositoryBuilder().setGitDir(new File(this.baseDir, REPOSITORY_NAME)).setBare()
+				.build();
+		try {
+			repo.create(true);
+
+			Random random = new Random(42);
+			byte[] payload = new byte[payloadSize];
+			random.nextBytes(payload);
+
+			ObjectInserter inserter = repo.newObjectInserter();
+			try {
+				this.payloadId = inserter.insert(Constants.OBJ_BLOB, payload);
+
+				// build the tree bottom-up; the entries are appended in the
+				// order git requires ("file..." < "payload.bin" < "sub")
+				ObjectId subtree = null;
+				for (int level = depth - 1; level >= 0; level--) {
+					TreeFormatter tree = new TreeFormatter();
+					for (int i = 0; i < filesPerDirectory; i++) {
+						byte[] content = String.format("level %d, file %d, %d\n", level, i, random.nextLong())
+								.getBytes(StandardCharsets.UTF_8);
+						tree.append(String.format("file%05d.txt", i), FileMode.REGULAR_FILE,
+								inserter.insert(Constants.OBJ_BLOB, content));
+					}
+					if (subtree == null) {
+						tree.append(PAYLOAD_NAME, FileMode.REGULAR_FILE, this.payloadId);
+					} else {
+						tree.append("sub", FileMode.TREE, subtree);
+					}
+					subtree = inserter.insert(tree);
+				}
+
+				PersonIdent ident = new PersonIdent("bench", "bench@localhost", 1438387200000L, 0);
+				CommitBuilder commit = new CommitBuilder();
+				commit.setTreeId(subtree);
+				commit.setAuthor(ident);
+				commit.setCommitter(ident);
+				commit.setMessage("synthetic commit\n");
+				this.commitId = inserter.insert(commit);
+				inserter.flush();
+			} finally {
+				inserter.close();
+			}
+
+			this.updateRef(repo, Constants.R_HEADS + Constants.MASTER);
+			for (int i = 0; i < tagCount; i++) {
+				this.updateRef(repo, String.format("%sv%d", Constants.R_TAGS, i));
+			}
+
+			if (packed) {
+				try {
+					Git.wrap(repo).gc().call();
+				} catch (GitAPIException e) {
+					throw new IOException("Unable to pack the repository", e);
+				}
+			}
+		} finally {
+			repo.close();
+		}
+
+		StringBuilder path = new StringBuilder();
+		for (int level = 1; level < depth; level++) {
+			path.append("sub/");
+		}
+		this.payloadPath = path.append(PAYLOAD_NAME).toString();
+	}
+
+	private void updateRef(Repository repo, String name) throws IOException {
+		RefUpdate update = repo.updateRef(name);
+		update.setNewObjectId(this.commitId);
+		update.setForceUpdate(true);
+		RefUpdate.Result result = update.update();
+		if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED) {
+			throw new IOException(String.format("Unable to create %s: %s", name, result));
+		}
+	}
+
+	/**
+	 * @return the directory which serves as RepoBase
+	 */
+	public File getBaseDir() {
+		return this.baseDir;
+	}
+
+	public ObjectId getCommitId() {
+		return this.commitId;
+	}
+
+	public ObjectId getPayloadId() {
+		return this.payloadId;
+	}
+
+	/**
+	 * @return the path of the payload file within the commit
+	 */
+	public String getPayloadPath() {
+		return this.payloadPath;
+	}
+
+	/**
+	 * removes the repository from disk
+	 *
+	 * @throws IOException
+	 *             if the files cannot be deleted
+	 */
+	public void delete() throws IOException {
+		FileUtils.delete(this.baseDir, FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+}
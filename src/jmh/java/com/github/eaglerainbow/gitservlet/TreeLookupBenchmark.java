@@ -0,0 +1,95 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Lookup of a file within a commit, both through the TreePathCache (as done
+ * by the servlet) and with a plain tree walk, which is what every lookup
+ * costs on a cache miss.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class TreeLookupBenchmark {
+	@Param({ "1", "8" })
+	public int depth;
+
+	@Param({ "10", "1000" })
+	public int filesPerDirectory;
+
+	@Param({ "true", "false" })
+	public boolean packed;
+
+	private SyntheticRepository synthetic;
+	private RepoBase repoBase;
+	private Repository repo;
+	private ServletRequest request;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.synthetic = new SyntheticRepository(this.depth, this.filesPerDirectory, 1024, 1, this.packed);
+		this.repoBase = new RepoBase(this.synthetic.getBaseDir());
+		this.repo = this.repoBase.openRepository(SyntheticRepository.REPOSITORY_NAME,
+				this.repoBase.getRepository(SyntheticRepository.REPOSITORY_NAME));
+		this.request = new ServletRequest(ServletMocks.log(), "/", ServletMocks.request(),
+				ServletMocks.response(new ServletMocks.CountingOutputStream()), this.repoBase, false);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		this.repo.close();
+		this.repoBase.shutdown();
+		this.synthetic.delete();
+	}
+
+	@Benchmark
+	public Object getFileObjectIdInCommit() throws IOException, LocalInternalServerException {
+		return this.request.getFileObjectIdInCommit(this.repo, this.synthetic.getCommitId(),
+				this.synthetic.getPayloadPath());
+	}
+
+	@Benchmark
+	public Object treeWalk() throws IOException {
+		ObjectReader reader = this.repo.newObjectReader();
+		try {
+			TreeWalk walk = TreeWalk.forPath(reader, this.synthetic.getPayloadPath(),
+					this.repo.parseCommit(this.synthetic.getCommitId()).getTree());
+			try {
+				return walk.getObjectId(0);
+			} finally {
+				walk.close();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
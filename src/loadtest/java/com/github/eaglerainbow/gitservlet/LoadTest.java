@@ -0,0 +1,479 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * End-to-end load test: generates a RepoBase, starts the servlet in an
+ * embedded Tomcat, and sends concurrent requests over HTTP in several
+ * phases, reporting throughput and latency percentiles for each of them.
+ * <p>
+ * The phases are:
+ * <ul>
+ * <li>cold: the first request to each repository right after startup
+ * (without warm-up, unless enabled by an init parameter)</li>
+ * <li>small: random small files of all repositories</li>
+ * <li>large: random large files of all repositories</li>
+ * <li>ref-churn: like small, while commits are made to the requested
+ * branches</li>
+ * <li>repo-churn: like small, while repositories are created in and deleted
+ * from the RepoBase; the time until a new repository is served is reported
+ * as "discovery"</li>
+ * </ul>
+ * Client and server share the JVM and the machine, so the numbers are meant
+ * for comparing versions and configurations on the same machine, not as the
+ * capacity of a server.
+ */
+public class LoadTest {
+	private static final String USAGE = "Usage: LoadTest [-threads n] [-seconds n] [-repositories n] "
+			+ "[-smallFiles n] [-largeFiles n] [-largeSize bytes] [-commitMillis n] [-dir directory] [-keep] "
+			+ "[initParameter=value ...]";
+
+	private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+
+	/**
+	 * the time a new repository may take until it is served
+	 */
+	private static final long DISCOVERY_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * the results of a phase
+	 */
+	private static class Phase {
+		private final String name;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private long nanos;
+
+		public Phase(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * selects the paths which are requested during a phase
+	 */
+	private interface Target {
+		String next(Random random);
+	}
+
+	private final String baseUrl;
+	private final LoadTestRepositories repositories;
+	private final int threads;
+	private final long phaseNanos;
+	private final long commitMillis;
+
+	public LoadTest(String baseUrl, LoadTestRepositories repositories, int threads, int seconds, long commitMillis) {
+		this.baseUrl = baseUrl;
+		this.repositories = repositories;
+		this.threads = threads;
+		this.phaseNanos = TimeUnit.SECONDS.toNanos(seconds);
+		this.commitMillis = commitMillis;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 32;
+		int seconds = 20;
+		int repositoryCount = 8;
+		int smallFiles = 1000;
+		int largeFiles = 2;
+		int largeSize = 4 * 1024 * 1024;
+		long commitMillis = 100;
+		File dir = null;
+		boolean keep = false;
+
+		Map<String, String> initParameters = new LinkedHashMap<String, String>();
+		initParameters.put("logLevel", "WARNING");
+		initParameters.put("warmUp", "false");
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.indexOf('=') > 0) {
+				initParameters.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+				continue;
+			}
+			if (arg.equals("-keep")) {
+				keep = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException(USAGE);
+			}
+
+			String value = args[++i];
+			if (arg.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (arg.equals("-seconds")) {
+				seconds = Integer.parseInt(value);
+			} else if (arg.equals("-repositories")) {
+				repositoryCount = Integer.parseInt(value);
+			} else if (arg.equals("-smallFiles")) {
+				smallFiles = Integer.parseInt(value);
+			} else if (arg.equals("-largeFiles")) {
+				largeFiles = Integer.parseInt(value);
+			} else if (arg.equals("-largeSize")) {
+				largeSize = (int) parseSize(value);
+			} else if (arg.equals("-commitMillis")) {
+				commitMillis = Long.parseLong(value);
+			} else if (arg.equals("-dir")) {
+				dir = new File(value);
+			} else {
+				throw new IllegalArgumentException(USAGE);
+			}
+		}
+
+		File workDir = dir != null ? dir : Files.createTempDirectory("gitservlet-loadtest").toFile();
+		File baseDir = new File(workDir, "repobase");
+		if (!baseDir.mkdirs()) {
+			throw new IOException(String.format("Unable to create %s; it must not exist yet", baseDir));
+		}
+		initParameters.put("repoBase", baseDir.getAbsolutePath());
+
+		// keep-alive connections for all client threads
+		System.setProperty("http.maxConnections", Integer.toString(threads));
+
+		System.out.format("Generating %d repositories in %s%n", repositoryCount, baseDir);
+		LoadTestRepositories repositories = new LoadTestRepositories(baseDir, repositoryCount, smallFiles,
+				largeFiles, largeSize);
+
+		long startupStart = System.nanoTime();
+		Tomcat tomcat = startServer(new File(workDir, "tomcat"), initParameters);
+		System.out.format("Servlet started in %d ms with %s%n",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startupStart), initParameters);
+		try {
+			String baseUrl = String.format("http://localhost:%d", tomcat.getConnector().getLocalPort());
+			LoadTest test = new LoadTest(baseUrl, repositories, threads, seconds, commitMillis);
+			test.run();
+			test.printCacheRatios();
+		} finally {
+			tomcat.stop();
+			tomcat.destroy();
+			if (!keep) {
+				FileUtils.delete(workDir, FileUtils.RECURSIVE | FileUtils.RETRY);
+			}
+		}
+	}
+
+	private static Tomcat startServer(File tomcatDir, Map<String, String> initParameters) throws Exception {
+		Tomcat tomcat = new Tomcat();
+		tomcat.setBaseDir(tomcatDir.getAbsolutePath());
+		tomcat.setPort(0);
+		// creates the default (NIO) connector, which supports sendfile
+		tomcat.getConnector();
+
+		Context context = tomcat.addContext("", null);
+		Wrapper wrapper = Tomcat.addServlet(context, "Servlet", Servlet.class.getName());
+		for (Map.Entry<String, String> parameter : initParameters.entrySet()) {
+			wrapper.addInitParameter(parameter.getKey(), parameter.getValue());
+		}
+		wrapper.setAsyncSupported(true);
+		wrapper.setLoadOnStartup(1);
+		context.addServletMappingDecoded("/", "Servlet");
+
+		tomcat.start();
+		return tomcat;
+	}
+
+	/**
+	 * runs all phases, and prints the result of each phase once it is done
+	 */
+	public void run() throws InterruptedException {
+		System.out.format(Locale.ROOT, "%n%-12s %10s %8s %10s %10s %10s %10s %10s%n", "phase", "requests", "errors",
+				"req/s", "MB/s", "p50 ms", "p99 ms", "p99.9 ms");
+
+		this.runCold();
+
+		final List<String> names = this.repositories.getNames();
+		final int smallFiles = this.repositories.getSmallFileCount();
+		Target small = new Target() {
+			@Override
+			public String next(Random random) {
+				return path(names.get(random.nextInt(names.size())),
+						LoadTestRepositories.smallFilePath(random.nextInt(smallFiles)));
+			}
+		};
+		this.runTimed(new Phase("small"), small, null);
+
+		final int largeFiles = this.repositories.getLargeFileCount();
+		if (largeFiles > 0) {
+			this.runTimed(new Phase("large"), new Target() {
+				@Override
+				public String next(Random random) {
+					return path(names.get(random.nextInt(names.size())),
+							LoadTestRepositories.largeFilePath(random.nextInt(largeFiles)));
+				}
+			}, null);
+		}
+
+		final Phase refChurn = new Phase("ref-churn");
+		final AtomicInteger commits = new AtomicInteger();
+		this.runTimed(refChurn, small, new Runnable() {
+			@Override
+			public void run() {
+				Random random = new Random(1);
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						LoadTest.this.repositories.commit(names.get(random.nextInt(names.size())), random);
+						commits.incrementAndGet();
+						Thread.sleep(LoadTest.this.commitMillis);
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Commit failed: " + e);
+						refChurn.errors.incrementAndGet();
+					}
+				}
+			}
+		});
+		System.out.format("  (%d commits)%n", commits.get());
+
+		final Phase repoChurn = new Phase("repo-churn");
+		final Phase discovery = new Phase("discovery");
+		this.runTimed(repoChurn, small, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+					try {
+						LoadTest.this.churnRepository(String.format("churn%05d", i), discovery);
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Repository churn failed: " + e);
+						repoChurn.errors.incrementAndGet();
+					}
+				}
+			}
+		});
+		// reports the repositories served per second of the phase
+		discovery.nanos = repoChurn.nanos;
+		this.print(discovery);
+	}
+
+	private void runCold() throws InterruptedException {
+		final Phase phase = new Phase("cold");
+		final List<String> names = this.repositories.getNames();
+		final AtomicInteger next = new AtomicInteger();
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < Math.min(this.threads, names.size()); i++) {
+			workers.add(new Thread("loadtest-" + i) {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[64 * 1024];
+					int index;
+					while ((index = next.getAndIncrement()) < names.size()) {
+						LoadTest.this.request(phase, path(names.get(index), LoadTestRepositories.smallFilePath(0)),
+								buffer);
+					}
+				}
+			});
+		}
+		this.runWorkers(phase, workers);
+	}
+
+	/**
+	 * sends requests from all threads until the time of the phase is over
+	 *
+	 * @param background
+	 *            changes the RepoBase while the phase is running, until it is
+	 *            interrupted; <code>null</code> if there are no changes
+	 */
+	private void runTimed(final Phase phase, final Target target, Runnable background) throws InterruptedException {
+		final long deadline = System.nanoTime() + this.phaseNanos;
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < this.threads; i++) {
+			final Random random = new Random(i);
+			workers.add(new Thread("loadtest-" + i) {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[64 * 1024];
+					while (System.nanoTime() < deadline) {
+						LoadTest.this.request(phase, target.next(random), buffer);
+					}
+				}
+			});
+		}
+
+		Thread changes = null;
+		if (background != null) {
+			changes = new Thread(background, "loadtest-changes");
+			changes.start();
+		}
+		try {
+			this.runWorkers(phase, workers);
+		} finally {
+			if (changes != null) {
+				changes.interrupt();
+				changes.join();
+			}
+		}
+	}
+
+	private void runWorkers(Phase phase, List<Thread> workers) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		phase.nanos = System.nanoTime() - start;
+		this.print(phase);
+	}
+
+	/**
+	 * creates a repository, waits until the servlet serves it, and deletes it
+	 * again
+	 *
+	 * @param discovery
+	 *            records the time until the repository has been served
+	 */
+	private void churnRepository(String name, Phase discovery) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		this.repositories.create(name);
+		try {
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(DISCOVERY_TIMEOUT_MILLIS);
+			byte[] buffer = new byte[64 * 1024];
+			String path = path(name, LoadTestRepositories.smallFilePath(0));
+			// not recorded by any phase, as the first attempts are expected to fail
+			Phase polls = new Phase(name);
+			while (this.request(polls, path, buffer) != HttpURLConnection.HTTP_OK) {
+				if (System.nanoTime() > deadline) {
+					System.out.format("Repository %s has not been served within %d ms%n", name,
+							DISCOVERY_TIMEOUT_MILLIS);
+					discovery.errors.incrementAndGet();
+					return;
+				}
+				Thread.sleep(10);
+			}
+			discovery.latencies.record(System.nanoTime() - start);
+		} finally {
+			this.repositories.delete(name);
+		}
+	}
+
+	/**
+	 * sends a request and reads the complete response
+	 *
+	 * @return the status of the response, or -1 if the request has failed
+	 */
+	private int request(Phase phase, String path, byte[] buffer) {
+		long start = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(this.baseUrl + path).openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			long received = 0;
+			if (in != null) {
+				try {
+					// reading to the end allows reusing the connection
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						received += read;
+					}
+				} finally {
+					in.close();
+				}
+			}
+
+			phase.latencies.record(System.nanoTime() - start);
+			phase.bytes.addAndGet(received);
+			if (status != HttpURLConnection.HTTP_OK) {
+				phase.errors.incrementAndGet();
+			}
+			return status;
+		} catch (IOException e) {
+			phase.errors.incrementAndGet();
+			return -1;
+		}
+	}
+
+	private void print(Phase phase) {
+		double seconds = Math.max(phase.nanos, 1) / 1e9;
+		System.out.format(Locale.ROOT, "%-12s %10d %8d %10.1f %10.1f", phase.name, phase.latencies.getCount(),
+				phase.errors.get(), phase.latencies.getCount() / seconds, phase.bytes.get() / 1048576.0 / seconds);
+		for (double percentile : PERCENTILES) {
+			System.out.format(Locale.ROOT, " %10.2f", phase.latencies.getQuantile(percentile) / 1e6);
+		}
+		System.out.println();
+	}
+
+	/**
+	 * prints the hit ratios of the servlet's caches after the run
+	 */
+	private void printCacheRatios() throws IOException {
+		System.out.println();
+		HttpURLConnection connection = (HttpURLConnection) new URL(this.baseUrl + "/.gitservlet/metrics")
+				.openConnection();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+				StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("gitservlet_cache_hit_ratio")) {
+					System.out.println(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String path(String repository, String file) {
+		return "/" + repository + "/" + LoadTestRepositories.BRANCH + "/" + file;
+	}
+
+	private static long parseSize(String value) {
+		String number = value.trim().toLowerCase(Locale.ROOT);
+		long unit = 1;
+		if (number.endsWith("k")) {
+			unit = 1024;
+		} else if (number.endsWith("m")) {
+			unit = 1024 * 1024;
+		} else if (number.endsWith("g")) {
+			unit = 1024 * 1024 * 1024;
+		}
+		if (unit != 1) {
+			number = number.substring(0, number.length() - 1);
+		}
+		return Long.parseLong(number) * unit;
+	}
+}
@@ -0,0 +1,295 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Generates the RepoBase of the load test, and changes it while the load
+ * test is running: commits to the branches, and creates and deletes
+ * repositories.
+ * <p>
+ * Each repository is bare and has the branch "master", whose tree contains
+ * the small files "small/file00000.txt", "small/file00001.txt", ... and the
+ * large files "large/blob000.bin", "large/blob001.bin", ... The content is
+ * generated from a seed per repository, so that runs are comparable.
+ */
+public class LoadTestRepositories {
+	public static final String BRANCH = Constants.MASTER;
+
+	/**
+	 * the number of small files in repositories created by
+	 * {@link #create(String)}
+	 */
+	private static final int CREATED_SMALL_FILES = 10;
+
+	private final File baseDir;
+	private final int smallFiles;
+	private final int largeFiles;
+	private final List<String> names;
+
+	/**
+	 * generates the repositories "repo00", "repo01", ...; their objects are
+	 * packed, as on a server which is maintained
+	 *
+	 * @param baseDir
+	 *            the directory which serves as RepoBase
+	 * @param count
+	 *            the number of repositories
+	 * @param smallFiles
+	 *            the number of small files (up to 4 KB) per repository
+	 * @param largeFiles
+	 *            the number of large files per repository
+	 * @param largeSize
+	 *            the size of each large file in bytes
+	 * @throws IOException
+	 *             if the repositories cannot be written
+	 */
+	public LoadTestRepositories(File baseDir, int count, int smallFiles, int largeFiles, int largeSize)
+			throws IOException {
+		this.baseDir = baseDir;
+		this.smallFiles = smallFiles;
+		this.largeFiles = largeFiles;
+
+		List<String> generated = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String name = String.format("repo%02d", i);
+			this.generate(name, smallFiles, largeFiles, largeSize, true, i);
+			generated.add(name);
+		}
+		this.names = Collections.unmodifiableList(generated);
+	}
+
+	/**
+	 * @return the names of the generated repositories
+	 */
+	public List<String> getNames() {
+		return this.names;
+	}
+
+	public int getSmallFileCount() {
+		return this.smallFiles;
+	}
+
+	public int getLargeFileCount() {
+		return this.largeFiles;
+	}
+
+	public static String smallFilePath(int index) {
+		return String.format("small/file%05d.txt", index);
+	}
+
+	public static String largeFilePath(int index) {
+		return String.format("large/blob%03d.bin", index);
+	}
+
+	/**
+	 * commits a change of a random small file to the branch of a repository
+	 *
+	 * @param name
+	 *            the name of one of the generated repositories
+	 * @param random
+	 *            selects the file and its new content
+	 * @throws IOException
+	 *             if the commit cannot be written
+	 */
+	public void commit(String name, Random random) throws IOException {
+		Repository repo = this.open(name);
+		try {
+			String branch = Constants.R_HEADS + BRANCH;
+			ObjectId head = repo.resolve(branch);
+			if (head == null) {
+				throw new IOException(String.format("Repository %s has no branch %s", name, BRANCH));
+			}
+
+			ObjectInserter inserter = repo.newObjectInserter();
+			ObjectReader reader = repo.newObjectReader();
+			RevWalk walk = new RevWalk(reader);
+			try {
+				RevCommit parent = walk.parseCommit(head);
+
+				DirCache index = DirCache.newInCore();
+				DirCacheBuilder builder = index.builder();
+				builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, parent.getTree());
+				builder.finish();
+
+				final ObjectId blob = inserter.insert(Constants.OBJ_BLOB, smallContent(random));
+				DirCacheEditor editor = index.editor();
+				editor.add(new DirCacheEditor.PathEdit(smallFilePath(random.nextInt(this.smallFiles))) {
+					@Override
+					public void apply(DirCacheEntry entry) {
+						entry.setFileMode(FileMode.REGULAR_FILE);
+						entry.setObjectId(blob);
+					}
+				});
+				editor.finish();
+
+				ObjectId commitId = inserter.insert(commit(index.writeTree(inserter), head));
+				inserter.flush();
+
+				RefUpdate update = repo.updateRef(branch);
+				update.setNewObjectId(commitId);
+				update.setExpectedOldObjectId(head);
+				RefUpdate.Result result = update.update(walk);
+				if (result != RefUpdate.Result.FAST_FORWARD) {
+					throw new IOException(String.format("Unable to update %s of %s: %s", branch, name, result));
+				}
+			} finally {
+				walk.close();
+				reader.close();
+				inserter.close();
+			}
+		} finally {
+			repo.close();
+		}
+	}
+
+	/**
+	 * creates a small repository with loose objects, just like a push to a
+	 * new repository would
+	 *
+	 * @param name
+	 *            the name of the new repository
+	 * @throws IOException
+	 *             if the repository cannot be written
+	 */
+	public void create(String name) throws IOException {
+		this.generate(name, CREATED_SMALL_FILES, 0, 0, false, name.hashCode());
+	}
+
+	/**
+	 * deletes a repository from the RepoBase
+	 *
+	 * @param name
+	 *            the name of the repository
+	 * @throws IOException
+	 *             if the repository cannot be deleted
+	 */
+	public void delete(String name) throws IOException {
+		FileUtils.delete(new File(this.baseDir, name), FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+
+	private void generate(String name, int smallCount, int largeCount, int largeSize, boolean packed, long seed)
+			throws IOException {
+		Repository repo = this.open(name);
+		try {
+			repo.create(true);
+
+			Random random = new Random(seed);
+			ObjectInserter inserter = repo.newObjectInserter();
+			ObjectId commitId;
+			try {
+				// entries must be appended in the order git requires
+				TreeFormatter root = new TreeFormatter();
+				if (largeCount > 0) {
+					TreeFormatter large = new TreeFormatter();
+					byte[] content = new byte[largeSize];
+					for (int i = 0; i < largeCount; i++) {
+						random.nextBytes(content);
+						large.append(largeFilePath(i).substring("large/".length()), FileMode.REGULAR_FILE,
+								inserter.insert(Constants.OBJ_BLOB, content));
+					}
+					root.append("large", FileMode.TREE, inserter.insert(large));
+				}
+				TreeFormatter small = new TreeFormatter();
+				for (int i = 0; i < smallCount; i++) {
+					small.append(smallFilePath(i).substring("small/".length()), FileMode.REGULAR_FILE,
+							inserter.insert(Constants.OBJ_BLOB, smallContent(random)));
+				}
+				root.append("small", FileMode.TREE, inserter.insert(small));
+
+				commitId = inserter.insert(commit(inserter.insert(root), null));
+				inserter.flush();
+			} finally {
+				inserter.close();
+			}
+
+			RefUpdate update = repo.updateRef(Constants.R_HEADS + BRANCH);
+			update.setNewObjectId(commitId);
+			RefUpdate.Result result = update.update();
+			if (result != RefUpdate.Result.NEW) {
+				throw new IOException(String.format("Unable to create the branch of %s: %s", name, result));
+			}
+
+			if (packed) {
+				try {
+					Git.wrap(repo).gc().call();
+				} catch (GitAPIException e) {
+					throw new IOException("Unable to pack the repository", e);
+				}
+			}
+		} finally {
+			repo.close();
+		}
+	}
+
+	private Repository open(String name) throws IOException {
+		return new FileRepositoryBuilder().setGitDir(new File(this.baseDir, name)).setBare().build();
+	}
+
+	private static CommitBuilder commit(ObjectId treeId, ObjectId parentId) {
+		PersonIdent ident = new PersonIdent("loadtest", "loadtest@localhost");
+		CommitBuilder commit = new CommitBuilder();
+		commit.setTreeId(treeId);
+		if (parentId != null) {
+			commit.setParentId(parentId);
+		}
+		commit.setAuthor(ident);
+		commit.setCommitter(ident);
+		commit.setMessage("load test\n");
+		return commit;
+	}
+
+	/**
+	 * @return text between 256 bytes and 4 KB, which compresses like source
+	 *         code does
+	 */
+	private static byte[] smallContent(Random random) {
+		int lines = 8 + random.nextInt(120);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			content.append("line ").append(i).append(": ").append(Long.toHexString(random.nextLong())).append('\n');
+		}
+		return content.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
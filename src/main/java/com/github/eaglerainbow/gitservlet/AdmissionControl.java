@@ -0,0 +1,280 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests which are processed at the same time, in
+ * total and per repository, and the rate at which they send data. Requests
+ * exceeding a concurrency limit wait in a bounded queue for a limited time;
+ * if the queue is full or the time is up, they are rejected, such that the
+ * client retries later instead of piling up more and more requests.
+ * <p>
+ * A request first waits for a slot of its repository, and only then for a
+ * slot of the servlet; thus, a single hot repository cannot occupy more
+ * than its share of the servlet's slots, and requests to other repositories
+ * are still served promptly. The queue of a repository is kept shorter than
+ * the servlet's, and requests are rejected at once while the servlet's queue
+ * is full.
+ * <p>
+ * Waiting requests block their thread; unless requests are processed on
+ * virtual threads, each of them occupies a thread of the container.
+ */
+public class AdmissionControl {
+	/**
+	 * the right to process a request; must be released once the response
+	 * has been sent completely
+	 */
+	public class Permit {
+		private final Limits repository;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(Limits repository) {
+			this.repository = repository;
+		}
+
+		/**
+		 * @return <code>true</code> if the transfer is subject to a byte
+		 *         rate limit; it then has to go through
+		 *         {@link #throttle(OutputStream)}
+		 */
+		public boolean isThrottled() {
+			return AdmissionControl.this.global.rate != null || this.repository.rate != null;
+		}
+
+		/**
+		 * @param out
+		 *            the stream to the client
+		 * @return a stream obeying the byte rate limits, or <code>out</code>
+		 *         itself if there are none
+		 */
+		public OutputStream throttle(OutputStream out) {
+			RateLimiter globalRate = AdmissionControl.this.global.rate;
+			RateLimiter repositoryRate = this.repository.rate;
+			if (globalRate == null && repositoryRate == null) {
+				return out;
+			}
+			if (globalRate == null) {
+				return RateLimiter.throttle(out, repositoryRate);
+			}
+			if (repositoryRate == null) {
+				return RateLimiter.throttle(out, globalRate);
+			}
+			return RateLimiter.throttle(out, repositoryRate, globalRate);
+		}
+
+		/**
+		 * releases the slots of the request; further calls have no effect
+		 */
+		public void release() {
+			if (this.released.compareAndSet(false, true)) {
+				AdmissionControl.this.global.release();
+				this.repository.release();
+			}
+		}
+	}
+
+	/**
+	 * the slots, the queue and the byte rate of either a repository or the
+	 * whole servlet
+	 */
+	private static class Limits {
+		private final Semaphore slots;
+		private final RateLimiter rate;
+		private final AtomicInteger active = new AtomicInteger();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicLong rejected = new AtomicLong();
+
+		/**
+		 * @param maxActive
+		 *            the number of slots, or 0 if unlimited
+		 * @param bytesPerSecond
+		 *            the byte rate, or 0 if unlimited
+		 */
+		public Limits(int maxActive, long bytesPerSecond) {
+			this.slots = maxActive > 0 ? new Semaphore(maxActive, true) : null;
+			this.rate = bytesPerSecond > 0 ? new RateLimiter(bytesPerSecond) : null;
+		}
+
+		/**
+		 * @return <code>true</code> if there is neither a free slot nor room
+		 *         in the queue, i.e. a request would be rejected at once
+		 */
+		public boolean isSaturated(int maxQueued) {
+			return this.slots != null && this.slots.availablePermits() == 0 && this.queued.get() >= maxQueued;
+		}
+
+		/**
+		 * @return <code>false</code> if the queue is full or no slot has
+		 *         become free until the deadline
+		 */
+		public boolean acquire(int maxQueued, long deadline) {
+			if (this.slots != null && !this.slots.tryAcquire()) {
+				if (this.queued.incrementAndGet() > maxQueued) {
+					this.queued.decrementAndGet();
+					return false;
+				}
+				try {
+					if (!this.slots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						return false;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					this.queued.decrementAndGet();
+				}
+			}
+			this.active.incrementAndGet();
+			return true;
+		}
+
+		public void release() {
+			this.active.decrementAndGet();
+			if (this.slots != null) {
+				this.slots.release();
+			}
+		}
+	}
+
+	private final Limits global;
+	private final int maxActivePerRepository;
+	private final long bytesPerSecondPerRepository;
+	private final int maxQueued;
+	private final int maxQueuedPerRepository;
+	private final long maxWaitNanos;
+	private final int retryAfterSeconds;
+	private final ConcurrentHashMap<String, Limits> repositories;
+
+	/**
+	 * @param maxActive
+	 *            the number of requests processed at the same time in total,
+	 *            or 0 if unlimited
+	 * @param maxActivePerRepository
+	 *            the number of requests processed at the same time per
+	 *            repository, or 0 if unlimited
+	 * @param maxQueued
+	 *            the number of requests which may wait for a slot of the
+	 *            servlet
+	 * @param maxQueuedPerRepository
+	 *            the number of requests which may wait for a slot of their
+	 *            repository
+	 * @param maxWaitMillis
+	 *            the time a request may wait for a slot
+	 * @param bytesPerSecond
+	 *            the rate at which all requests may send data in total, or 0
+	 *            if unlimited
+	 * @param bytesPerSecondPerRepository
+	 *            the rate at which the requests of a single repository may
+	 *            send data, or 0 if unlimited
+	 */
+	public AdmissionControl(int maxActive, int maxActivePerRepository, int maxQueued, int maxQueuedPerRepository,
+			long maxWaitMillis, long bytesPerSecond, long bytesPerSecondPerRepository) {
+		this.global = new Limits(maxActive, bytesPerSecond);
+		this.maxActivePerRepository = maxActivePerRepository;
+		this.bytesPerSecondPerRepository = bytesPerSecondPerRepository;
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerRepository = maxQueuedPerRepository;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		// by then, the queue has been worked off once
+		this.retryAfterSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis + 999));
+		this.repositories = new ConcurrentHashMap<String, Limits>();
+	}
+
+	/**
+	 * waits until the request may be processed
+	 *
+	 * @param repoName
+	 *            the name of the requested repository
+	 * @return the permit, which must be released once the response has been
+	 *         sent
+	 * @throws LocalServiceUnavailableException
+	 *             if the request has been rejected
+	 */
+	public Permit admit(String repoName) throws LocalServiceUnavailableException {
+		Limits repository = this.repositories.get(repoName);
+		if (repository == null) {
+			repository = new Limits(this.maxActivePerRepository, this.bytesPerSecondPerRepository);
+			Limits existing = this.repositories.putIfAbsent(repoName, repository);
+			if (existing != null) {
+				repository = existing;
+			}
+		}
+
+		if (this.global.isSaturated(this.maxQueued)) {
+			// do not even hold a slot of the repository in the meantime
+			repository.rejected.incrementAndGet();
+			this.global.rejected.incrementAndGet();
+			throw new LocalServiceUnavailableException("Too many requests; retry later", this.retryAfterSeconds);
+		}
+
+		long deadline = System.nanoTime() + this.maxWaitNanos;
+		if (!repository.acquire(this.maxQueuedPerRepository, deadline)) {
+			repository.rejected.incrementAndGet();
+			throw new LocalServiceUnavailableException("Too many requests for this repository; retry later",
+					this.retryAfterSeconds);
+		}
+		if (!this.global.acquire(this.maxQueued, deadline)) {
+			repository.release();
+			repository.rejected.incrementAndGet();
+			this.global.rejected.incrementAndGet();
+			throw new LocalServiceUnavailableException("Too many requests; retry later", this.retryAfterSeconds);
+		}
+		return new Permit(repository);
+	}
+
+	/**
+	 * writes the number of active, queued and rejected requests, in total and
+	 * per repository
+	 *
+	 * @param out
+	 *            the writer to write to
+	 */
+	public void writeMetrics(PrintWriter out) {
+		Map<String, Long> active = new TreeMap<String, Long>();
+		Map<String, Long> queued = new TreeMap<String, Long>();
+		Map<String, Long> rejected = new TreeMap<String, Long>();
+		for (Map.Entry<String, Limits> entry : this.repositories.entrySet()) {
+			active.put(entry.getKey(), (long) entry.getValue().active.get());
+			queued.put(entry.getKey(), (long) entry.getValue().queued.get());
+			rejected.put(entry.getKey(), entry.getValue().rejected.get());
+		}
+
+		Metrics.writeValue(out, "gitservlet_active_requests", "gauge", "Requests currently being processed.",
+				this.global.active.get());
+		Metrics.writeValue(out, "gitservlet_queued_requests", "gauge",
+				"Requests waiting for a slot of the servlet (after having got one of their repository).",
+				this.global.queued.get());
+		Metrics.writeValue(out, "gitservlet_rejected_requests_total", "counter",
+				"Requests rejected as the servlet has been too busy.", this.global.rejected.get());
+		Metrics.writeRepositoryValues(out, "gitservlet_repository_active_requests", "gauge",
+				"Requests currently being processed per repository.", active);
+		Metrics.writeRepositoryValues(out, "gitservlet_repository_queued_requests", "gauge",
+				"Requests waiting for a slot of their repository.", queued);
+		Metrics.writeRepositoryValues(out, "gitservlet_repository_rejected_requests_total", "counter",
+				"Requests rejected per repository, as it or the servlet has been too busy.", rejected);
+	}
+}
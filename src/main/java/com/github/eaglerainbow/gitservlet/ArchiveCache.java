@@ -0,0 +1,265 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+
+/**
+ * Keeps generated archives of trees on disk, keyed by tree id and format.
+ * <p>
+ * Archives are generated with fixed timestamps, so the tree id fully
+ * determines their content, and cached archives never become stale. An
+ * archive is recorded while it is streamed to the first client; it is only
+ * added to the cache once it is complete. When the cache exceeds its disk
+ * budget, the least recently used archives are deleted.
+ */
+public class ArchiveCache {
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final long maxBytes;
+	private final long maxArchiveSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param directory
+	 *            the directory to store the archives in; it is created if
+	 *            necessary
+	 * @param maxBytes
+	 *            the disk space which the archives may occupy
+	 * @param maxArchiveSize
+	 *            the size of the largest archive which is cached
+	 */
+	public ArchiveCache(File directory, long maxBytes, long maxArchiveSize) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.maxArchiveSize = maxArchiveSize;
+
+		// recordings interrupted by a previous shutdown
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(TEMP_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * opens a cached archive
+	 *
+	 * @param treeId
+	 *            the id of the archived tree
+	 * @param format
+	 *            the format of the archive
+	 * @return the stream of the archive, or <code>null</code> if it is not
+	 *         cached
+	 */
+	public FileInputStream open(AnyObjectId treeId, ArchiveWriter.Format format) {
+		File file = this.getFile(treeId, format);
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		this.hits.incrementAndGet();
+		// the modification time serves as time of the last access
+		file.setLastModified(System.currentTimeMillis());
+		return in;
+	}
+
+	/**
+	 * starts recording an archive which is being generated
+	 *
+	 * @param treeId
+	 *            the id of the archived tree
+	 * @param format
+	 *            the format of the archive
+	 * @param out
+	 *            the stream to which the archive is sent
+	 * @return a stream which passes everything written to it on to
+	 *         <code>out</code> and records it
+	 */
+	public Recording record(AnyObjectId treeId, ArchiveWriter.Format format, OutputStream out) {
+		File temp = null;
+		OutputStream file = null;
+		try {
+			this.directory.mkdirs();
+			temp = File.createTempFile(treeId.name(), TEMP_SUFFIX, this.directory);
+			file = new FileOutputStream(temp);
+		} catch (IOException e) {
+			// the archive is sent anyway, it just won't be cached
+			if (temp != null) {
+				temp.delete();
+			}
+			temp = null;
+		}
+		return new Recording(out, temp, file, this.getFile(treeId, format));
+	}
+
+	private File getFile(AnyObjectId treeId, ArchiveWriter.Format format) {
+		return new File(this.directory, treeId.name() + "." + format.getExtension());
+	}
+
+	/**
+	 * deletes the least recently used archives until the cache is within its
+	 * disk budget again
+	 */
+	private synchronized void trim() {
+		File[] files = this.directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= this.maxBytes) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (total <= this.maxBytes) {
+				break;
+			}
+			if (!file.getName().endsWith(TEMP_SUFFIX)) {
+				total -= file.length();
+				file.delete();
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * an archive being recorded. Recording stops silently if the archive
+	 * cannot be written to disk or becomes too large. Closing the recording
+	 * without calling {@link #commit()} discards it.
+	 */
+	public class Recording extends FilterOutputStream {
+		private final File target;
+		private File temp;
+		private OutputStream file;
+		private long size;
+
+		private Recording(OutputStream out, File temp, OutputStream file, File target) {
+			super(out);
+			this.temp = temp;
+			this.file = file;
+			this.target = target;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+
+			if (this.file != null) {
+				this.size += len;
+				try {
+					if (this.size > ArchiveCache.this.maxArchiveSize) {
+						throw new IOException("Archive is too large to be cached");
+					}
+					this.file.write(b, off, len);
+				} catch (IOException e) {
+					this.discard();
+				}
+			}
+		}
+
+		/**
+		 * adds the recorded archive to the cache; to be called once the
+		 * archive is complete
+		 */
+		public void commit() {
+			if (this.file == null) {
+				return;
+			}
+
+			try {
+				this.file.close();
+				this.file = null;
+				Files.move(this.temp.toPath(), this.target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				this.temp = null;
+			} catch (IOException e) {
+				this.discard();
+				return;
+			}
+			ArchiveCache.this.trim();
+		}
+
+		/**
+		 * discards the recording, if it has not been committed; the stream
+		 * to the client is left open
+		 */
+		@Override
+		public void close() {
+			this.discard();
+		}
+
+		private void discard() {
+			if (this.file != null) {
+				try {
+					this.file.close();
+				} catch (IOException e) {
+					// deleted anyway
+				}
+				this.file = null;
+			}
+			if (this.temp != null) {
+				this.temp.delete();
+				this.temp = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+/**
+ * Writes files into an archive which is streamed to an output stream.
+ * <p>
+ * Each file is copied straight from its object loader, so the memory used
+ * does not depend on the number or the size of the files; only the sizes
+ * must be known upfront (which is the case for Git objects).
+ */
+public abstract class ArchiveWriter {
+	/**
+	 * the supported archive formats
+	 */
+	public enum Format {
+		ZIP("zip", "application/zip"),
+		TAR("tar", "application/x-tar"),
+		TGZ("tar.gz", "application/gzip");
+
+		private final String extension;
+		private final String contentType;
+
+		private Format(String extension, String contentType) {
+			this.extension = extension;
+			this.contentType = contentType;
+		}
+
+		public String getExtension() {
+			return this.extension;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+
+		/**
+		 * @param name
+		 *            the name of the format as given by the client (like
+		 *            "zip" or "tgz")
+		 * @return the format, or <code>null</code> if it is not supported
+		 */
+		public static Format parse(String name) {
+			if (name == null) {
+				return null;
+			}
+			name = name.toLowerCase(Locale.ROOT);
+			if (name.equals("zip")) {
+				return ZIP;
+			}
+			if (name.equals("tar")) {
+				return TAR;
+			}
+			if (name.equals("tgz") || name.equals("tar.gz")) {
+				return TGZ;
+			}
+			return null;
+		}
+	}
+
+	private final CountingOutputStream counter;
+
+	/**
+	 * the modification time of all entries, in milliseconds
+	 */
+	protected final long time;
+
+	/**
+	 * creates a writer for an archive of the given format
+	 *
+	 * @param format
+	 *            the format of the archive
+	 * @param out
+	 *            the stream to write the archive to; it is not closed by the
+	 *            writer
+	 * @param time
+	 *            the modification time of all entries, in milliseconds
+	 * @return the writer
+	 * @throws IOException
+	 *             if the archive cannot be started
+	 */
+	public static ArchiveWriter open(Format format, OutputStream out, long time) throws IOException {
+		switch (format) {
+		case ZIP:
+			return new ZipWriter(out, time);
+		case TAR:
+			return new TarWriter(out, time, false);
+		case TGZ:
+			return new TarWriter(out, time, true);
+		default:
+			throw new IllegalArgumentException("Unsupported archive format " + format);
+		}
+	}
+
+	protected ArchiveWriter(OutputStream out, long time) {
+		this.counter = new CountingOutputStream(out);
+		this.time = time;
+	}
+
+	/**
+	 * @return the stream counting the bytes of the archive
+	 */
+	protected OutputStream getOutputStream() {
+		return this.counter;
+	}
+
+	/**
+	 * adds a file to the archive
+	 *
+	 * @param path
+	 *            the path of the file within the archive
+	 * @param mode
+	 *            the mode of the file in the Git tree; symbolic links are
+	 *            stored as such if the format supports it
+	 * @param loader
+	 *            the loader of the file's content
+	 * @throws IOException
+	 *             if the file cannot be read or written
+	 */
+	public abstract void addFile(String path, FileMode mode, ObjectLoader loader) throws IOException;
+
+	/**
+	 * writes the end of the archive and flushes it; the underlying stream is
+	 * left open
+	 *
+	 * @throws IOException
+	 *             if the archive cannot be written
+	 */
+	public abstract void finish() throws IOException;
+
+	/**
+	 * @return the number of bytes of the archive written so far
+	 */
+	public long getBytesWritten() {
+		return this.counter.getCount();
+	}
+
+	/**
+	 * writes zip archives. Zip has no portable notion of executable files and
+	 * symbolic links; they are stored as regular files.
+	 */
+	private static class ZipWriter extends ArchiveWriter {
+		private final ZipOutputStream zip;
+
+		public ZipWriter(OutputStream out, long time) {
+			super(out, time);
+			this.zip = new ZipOutputStream(this.getOutputStream(), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void addFile(String path, FileMode mode, ObjectLoader loader) throws IOException {
+			ZipEntry entry = new ZipEntry(path);
+			entry.setTime(this.time);
+			entry.setSize(loader.getSize());
+			this.zip.putNextEntry(entry);
+			loader.copyTo(this.zip);
+			this.zip.closeEntry();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.zip.finish();
+			this.zip.flush();
+		}
+	}
+
+	/**
+	 * writes tar archives in the POSIX (pax) format: plain ustar headers,
+	 * preceded by an extended header for paths and link targets which do
+	 * not fit into them, and for files of 8 GB and more.
+	 */
+	private static class TarWriter extends ArchiveWriter {
+		private static final int BLOCK_SIZE = 512;
+		private static final long MAX_USTAR_SIZE = 077777777777L;
+
+		private final OutputStream out;
+		private final GZIPOutputStream gzip;
+		private final byte[] header = new byte[BLOCK_SIZE];
+
+		public TarWriter(OutputStream out, long time, boolean compress) throws IOException {
+			super(out, time);
+			this.gzip = compress ? new GZIPOutputStream(this.getOutputStream(), 64 * 1024) : null;
+			this.out = compress ? this.gzip : this.getOutputStream();
+		}
+
+		@Override
+		public void addFile(String path, FileMode mode, ObjectLoader loader) throws IOException {
+			Map<String, String> extended = new LinkedHashMap<String, String>();
+			if (utf8(path).length > 100) {
+				extended.put("path", path);
+			}
+
+			if (mode == FileMode.SYMLINK) {
+				String target = new String(loader.getCachedBytes(), StandardCharsets.UTF_8);
+				if (utf8(target).length > 100) {
+					extended.put("linkpath", target);
+				}
+				this.writeExtendedHeader(path, extended);
+				this.writeHeader(path, 0777, 0, '2', target);
+				return;
+			}
+
+			long size = loader.getSize();
+			if (size > MAX_USTAR_SIZE) {
+				extended.put("size", Long.toString(size));
+			}
+			this.writeExtendedHeader(path, extended);
+			this.writeHeader(path, mode == FileMode.EXECUTABLE_FILE ? 0755 : 0644, size, '0', null);
+			loader.copyTo(this.out);
+			this.pad(size);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			// the end of the archive is marked by two empty blocks
+			this.out.write(new byte[2 * BLOCK_SIZE]);
+			if (this.gzip != null) {
+				this.gzip.finish();
+			}
+			this.out.flush();
+		}
+
+		private void writeExtendedHeader(String path, Map<String, String> records) throws IOException {
+			if (records.isEmpty()) {
+				return;
+			}
+
+			StringBuilder content = new StringBuilder();
+			for (Map.Entry<String, String> record : records.entrySet()) {
+				// each record is prefixed by its own length in bytes, including
+				// the length itself
+				String suffix = " " + record.getKey() + "=" + record.getValue() + "\n";
+				int length = utf8(suffix).length;
+				int total = length + Integer.toString(length).length();
+				if (Integer.toString(total).length() != Integer.toString(length).length()) {
+					total++;
+				}
+				content.append(total).append(suffix);
+			}
+
+			byte[] bytes = utf8(content.toString());
+			this.writeHeader("PaxHeaders/" + path, 0644, bytes.length, 'x', null);
+			this.out.write(bytes);
+			this.pad(bytes.length);
+		}
+
+		private void writeHeader(String path, int mode, long size, char type, String linkName) throws IOException {
+			Arrays.fill(this.header, (byte) 0);
+			putString(this.header, 0, 100, path);
+			putOctal(this.header, 100, 8, mode);
+			putOctal(this.header, 108, 8, 0); // uid
+			putOctal(this.header, 116, 8, 0); // gid
+			putOctal(this.header, 124, 12, Math.min(size, MAX_USTAR_SIZE));
+			putOctal(this.header, 136, 12, this.time / 1000);
+			this.header[156] = (byte) type;
+			if (linkName != null) {
+				putString(this.header, 157, 100, linkName);
+			}
+			putString(this.header, 257, 6, "ustar");
+			putString(this.header, 263, 2, "00");
+
+			// the checksum is computed with the checksum field set to blanks
+			Arrays.fill(this.header, 148, 156, (byte) ' ');
+			long checksum = 0;
+			for (byte b : this.header) {
+				checksum += b & 0xff;
+			}
+			putOctal(this.header, 148, 7, checksum);
+
+			this.out.write(this.header);
+		}
+
+		private void pad(long size) throws IOException {
+			int remainder = (int) (size % BLOCK_SIZE);
+			if (remainder != 0) {
+				this.out.write(new byte[BLOCK_SIZE - remainder]);
+			}
+		}
+
+		private static byte[] utf8(String value) {
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * stores a string, truncated to the field; the complete value is
+		 * provided by the extended header in that case
+		 */
+		private static void putString(byte[] header, int offset, int length, String value) {
+			byte[] bytes = utf8(value);
+			System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+		}
+
+		/**
+		 * stores a number as zero-padded octal digits, terminated by NUL
+		 */
+		private static void putOctal(byte[] header, int offset, int length, long value) {
+			String digits = Long.toOctalString(value);
+			int start = offset + length - 1 - digits.length();
+			Arrays.fill(header, offset, start, (byte) '0');
+			for (int i = 0; i < digits.length(); i++) {
+				header[start + i] = (byte) digits.charAt(i);
+			}
+			header[offset + length - 1] = 0;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Streams the content of a file to the client using non-blocking I/O
+ * (Servlet 3.1).
+ * <p>
+ * Data is only read from the object stream and written to the client while
+ * the container reports that the socket can accept more data. If the client
+ * is slow, no container thread is kept waiting; the container calls
+ * {@link #onWritePossible()} again once the socket has drained.
+ */
+public class AsyncTransfer implements WriteListener, AsyncListener {
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final AsyncContext asyncContext;
+	private final ServletOutputStream out;
+	private final InputStream in;
+	private final Repository repo;
+	private final Log log;
+	private final Metrics.RepositoryMetrics metrics;
+	private final long transferStart;
+	private final AdmissionControl.Permit permit;
+	private final long length;
+	private final byte[] buffer;
+	private long remaining;
+
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	/**
+	 * starts the transfer of the given stream to the client of the request
+	 * which is associated to the asynchronous context. The transfer takes
+	 * over the stream and an additional reference on the repository, and
+	 * releases both once it has finished.
+	 *
+	 * @param asyncContext
+	 *            the context of the request, as returned by
+	 *            <code>startAsync()</code>
+	 * @param in
+	 *            the stream of the data which shall be sent
+	 * @param length
+	 *            the number of bytes which shall be sent
+	 * @param repo
+	 *            the repository from which the stream is read
+	 * @param log
+	 *            the log to report problems to
+	 * @param metrics
+	 *            the metrics of the repository, which shall record the
+	 *            transfer
+	 * @param transferStart
+	 *            the point in time when the transfer has started
+	 * @param permit
+	 *            the admission of the request, which is released once the
+	 *            transfer has finished; <code>null</code> if requests are not
+	 *            limited
+	 * @throws IOException
+	 *             if the output stream cannot be retrieved
+	 */
+	public static void start(AsyncContext asyncContext, InputStream in, long length, Repository repo, Log log,
+			Metrics.RepositoryMetrics metrics, long transferStart, AdmissionControl.Permit permit) throws IOException {
+		// client connection timeouts are enforced by the container
+		asyncContext.setTimeout(0);
+
+		repo.incrementOpen();
+		AsyncTransfer transfer = new AsyncTransfer(asyncContext, in, length, repo, log, metrics, transferStart,
+				permit);
+		asyncContext.addListener(transfer);
+		transfer.out.setWriteListener(transfer);
+	}
+
+	private AsyncTransfer(AsyncContext asyncContext, InputStream in, long length, Repository repo, Log log,
+			Metrics.RepositoryMetrics metrics, long transferStart, AdmissionControl.Permit permit) throws IOException {
+		this.asyncContext = asyncContext;
+		this.out = asyncContext.getResponse().getOutputStream();
+		this.in = in;
+		this.repo = repo;
+		this.log = log;
+		this.metrics = metrics;
+		this.transferStart = transferStart;
+		this.permit = permit;
+		this.length = length;
+		this.remaining = length;
+		this.buffer = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+	}
+
+	@Override
+	public void onWritePossible() throws IOException {
+		while (this.out.isReady()) {
+			if (this.remaining == 0) {
+				this.log.fine("Transfer is completed");
+				this.metrics.record(Metrics.Stage.TRANSFER, System.nanoTime() - this.transferStart);
+				this.metrics.addBytesSent(this.length);
+				this.finish(true);
+				return;
+			}
+
+			int read = this.in.read(this.buffer, 0, (int) Math.min(this.remaining, this.buffer.length));
+			if (read < 0) {
+				throw new EOFException("Unexpected end of object stream");
+			}
+			this.remaining -= read;
+			this.out.write(this.buffer, 0, read);
+		}
+		// the socket is back-pressured; the container will call us again
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		this.log.info("Transfer has been aborted", t);
+		this.finish(true);
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) throws IOException {
+		this.finish(false);
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) throws IOException {
+		this.finish(true);
+	}
+
+	@Override
+	public void onError(AsyncEvent event) throws IOException {
+		this.finish(true);
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) throws IOException {
+		// not relevant
+	}
+
+	private void finish(boolean complete) {
+		if (!this.finished.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			this.in.close();
+		} catch (IOException e) {
+			this.log.warn("Unable to close object stream", e);
+		}
+		this.repo.close();
+		if (this.permit != null) {
+			this.permit.release();
+		}
+
+		if (complete) {
+			this.asyncContext.complete();
+		}
+	}
+}
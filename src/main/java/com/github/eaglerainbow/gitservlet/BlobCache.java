@@ -0,0 +1,305 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Keeps the content of small, frequently requested blobs in memory, keyed by
+ * their blob id.
+ * <p>
+ * As the blob id is the hash of the content, cached content never becomes
+ * stale, and the cache is shared by all repositories of the RepoBase. The
+ * content is stored in direct buffers, i.e. outside of the Java heap (thus,
+ * the JVM's <code>-XX:MaxDirectMemorySize</code> must be large enough).
+ * Blobs larger than a threshold are not admitted at all.
+ * <p>
+ * Concurrent misses of the same blob are coalesced: the blob is inflated
+ * once, and the content is handed to all waiting requests, even if it is
+ * not admitted. Only blobs which JGit streams (see
+ * <code>core.streamFileThreshold</code>) are opened by each request.
+ * <p>
+ * Eviction follows a segmented LRU scheme: new entries are put into a
+ * probationary segment and are only moved into the protected segment when
+ * requested a second time. A scan over many files requested only once
+ * therefore only displaces other probationary entries, but not the hot set.
+ */
+public class BlobCache {
+	/**
+	 * the share of the capacity reserved for entries which have been
+	 * requested at least twice
+	 */
+	private static final double PROTECTED_RATIO = 0.8;
+
+	private final long maxBytes;
+	private final long maxProtectedBytes;
+	private final int maxObjectSize;
+
+	/*
+	 * both segments are access-ordered and guarded by this
+	 */
+	private final LinkedHashMap<ObjectId, ByteBuffer> probation;
+	private final LinkedHashMap<ObjectId, ByteBuffer> protect;
+	private long probationBytes;
+	private long protectedBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * coalesces concurrent loads of the same blob, such that it is inflated
+	 * only once
+	 */
+	private final SingleFlight<ObjectId, ByteBuffer> loads = new SingleFlight<ObjectId, ByteBuffer>();
+
+	/**
+	 * @param maxBytes
+	 *            the number of bytes of content which may be cached
+	 * @param maxObjectSize
+	 *            the size of the largest blob which is admitted to the cache
+	 */
+	public BlobCache(long maxBytes, int maxObjectSize) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+		this.maxObjectSize = maxObjectSize;
+		this.probation = new LinkedHashMap<ObjectId, ByteBuffer>(256, 0.75f, true);
+		this.protect = new LinkedHashMap<ObjectId, ByteBuffer>(256, 0.75f, true);
+	}
+
+	/**
+	 * opens a blob, serving it from the cache if possible
+	 *
+	 * @param repo
+	 *            the repository which contains the blob
+	 * @param blobId
+	 *            the id of the blob
+	 * @return the loader for the blob's content
+	 * @throws IOException
+	 *             if the blob cannot be read from the repository
+	 */
+	public ObjectLoader open(final Repository repo, AnyObjectId blobId) throws IOException {
+		ByteBuffer content = this.get(blobId);
+		if (content != null) {
+			this.hits.incrementAndGet();
+			return new BufferLoader(content);
+		}
+		this.misses.incrementAndGet();
+
+		final ObjectId id = blobId.copy();
+		// set only in the thread which actually loads the blob
+		final ObjectLoader[] own = new ObjectLoader[1];
+		content = this.loads.load(id, new SingleFlight.Loader<ByteBuffer>() {
+			@Override
+			public ByteBuffer load() throws IOException {
+				ObjectLoader loader = repo.open(id, Constants.OBJ_BLOB);
+				if (loader.isLarge()) {
+					// too large to be kept in memory; each request streams it
+					own[0] = loader;
+					return null;
+				}
+
+				byte[] bytes = loader.getCachedBytes();
+				if (bytes.length > BlobCache.this.maxObjectSize) {
+					// not admitted, but inflated already: share it with the
+					// concurrent requests of this load only
+					return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+				}
+
+				ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+				buffer.put(bytes);
+				buffer.flip();
+				ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+				BlobCache.this.put(id, readOnly);
+				return readOnly;
+			}
+		});
+
+		if (content == null) {
+			if (own[0] != null) {
+				return own[0];
+			}
+			// opening a large blob only reads its header
+			return repo.open(id, Constants.OBJ_BLOB);
+		}
+		// the buffer may be shared with concurrent requests
+		return new BufferLoader(content);
+	}
+
+	private synchronized ByteBuffer get(AnyObjectId blobId) {
+		ByteBuffer content = this.protect.get(blobId);
+		if (content != null) {
+			return content;
+		}
+
+		content = this.probation.remove(blobId);
+		if (content != null) {
+			// second hit: promote
+			this.probationBytes -= content.capacity();
+			this.protect.put(blobId.copy(), content);
+			this.protectedBytes += content.capacity();
+			this.trim();
+		}
+		return content;
+	}
+
+	private synchronized void put(ObjectId blobId, ByteBuffer content) {
+		if (this.protect.containsKey(blobId) || this.probation.containsKey(blobId)) {
+			// another request has been faster
+			return;
+		}
+
+		this.probation.put(blobId, content);
+		this.probationBytes += content.capacity();
+		this.trim();
+	}
+
+	private void trim() {
+		// demote entries which do not fit into the protected segment anymore
+		Iterator<Map.Entry<ObjectId, ByteBuffer>> it = this.protect.entrySet().iterator();
+		while (this.protectedBytes > this.maxProtectedBytes && it.hasNext()) {
+			Map.Entry<ObjectId, ByteBuffer> demoted = it.next();
+			it.remove();
+			this.protectedBytes -= demoted.getValue().capacity();
+			this.probation.put(demoted.getKey(), demoted.getValue());
+			this.probationBytes += demoted.getValue().capacity();
+		}
+
+		it = this.probation.entrySet().iterator();
+		while (this.probationBytes + this.protectedBytes > this.maxBytes && it.hasNext()) {
+			Map.Entry<ObjectId, ByteBuffer> evicted = it.next();
+			it.remove();
+			this.probationBytes -= evicted.getValue().capacity();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of misses which have waited for a concurrent load
+	 *         of the same blob
+	 */
+	public long getCoalescedCount() {
+		return this.loads.getCoalescedCount();
+	}
+
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return the number of bytes of content currently cached
+	 */
+	public synchronized long getSize() {
+		return this.probationBytes + this.protectedBytes;
+	}
+
+	/**
+	 * provides the content of a cached blob; each loader works on its own
+	 * view of the shared buffer
+	 */
+	private static class BufferLoader extends ObjectLoader {
+		private final ByteBuffer content;
+
+		public BufferLoader(ByteBuffer content) {
+			this.content = content;
+		}
+
+		@Override
+		public int getType() {
+			return Constants.OBJ_BLOB;
+		}
+
+		@Override
+		public long getSize() {
+			return this.content.capacity();
+		}
+
+		@Override
+		public byte[] getCachedBytes() {
+			byte[] bytes = new byte[this.content.capacity()];
+			this.content.duplicate().get(bytes);
+			return bytes;
+		}
+
+		@Override
+		public ObjectStream openStream() throws MissingObjectException, IOException {
+			final ByteBuffer view = this.content.duplicate();
+			InputStream in = new InputStream() {
+				@Override
+				public int read() {
+					return view.hasRemaining() ? view.get() & 0xff : -1;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if (!view.hasRemaining()) {
+						return -1;
+					}
+					len = Math.min(len, view.remaining());
+					view.get(b, off, len);
+					return len;
+				}
+
+				@Override
+				public long skip(long n) {
+					int skipped = (int) Math.max(0, Math.min(n, view.remaining()));
+					view.position(view.position() + skipped);
+					return skipped;
+				}
+
+				@Override
+				public int available() {
+					return view.remaining();
+				}
+			};
+			return new ObjectStream.Filter(this.getType(), this.getSize(), in);
+		}
+
+		@Override
+		public void copyTo(OutputStream out) throws MissingObjectException, IOException {
+			ByteBuffer view = this.content.duplicate();
+			byte[] chunk = new byte[Math.min(view.remaining(), 8192)];
+			while (view.hasRemaining()) {
+				int len = Math.min(chunk.length, view.remaining());
+				view.get(chunk, 0, len);
+				out.write(chunk, 0, len);
+			}
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Keeps the content of large blobs as plain files on disk, named by their
+ * blob id (like Git's loose objects, but uncompressed).
+ * <p>
+ * A blob is written to the store in the background when it is requested
+ * for the first time (that request is still served from the repository);
+ * afterwards it is served from that file without inflating or
+ * delta-resolving it again, and the file can be handed to the kernel (see
+ * {@link StoredLoader#getFile()}). As the blob id is the hash of the
+ * content, stored files never become stale. When the store exceeds its disk
+ * budget, the least recently used files are deleted.
+ */
+public class BlobStore {
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * once the budget is exceeded, files are deleted until this share of the
+	 * budget is used, so that eviction does not run on every new file
+	 */
+	private static final double TRIM_RATIO = 0.9;
+
+	/**
+	 * the number of blobs which may wait to be written; further blobs are
+	 * written on a later request
+	 */
+	private static final int MAX_PENDING_WRITES = 64;
+
+	/**
+	 * the time a file handed over to the container is protected from being
+	 * deleted; the container opens it right after the request has been
+	 * processed, and an opened file may be deleted without harm
+	 */
+	private static final long PIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static class Entry {
+		private final File file;
+		private final long size;
+		private volatile long lastAccess;
+		private volatile long pinnedUntil;
+
+		public Entry(File file, long size, long lastAccess) {
+			this.file = file;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final File directory;
+	private final long maxBytes;
+	private final long minObjectSize;
+
+	/**
+	 * the stored blobs, so that looking up a blob which is not stored does
+	 * not need to touch the disk
+	 */
+	private final ConcurrentHashMap<ObjectId, Entry> entries;
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * the blobs which are about to be written, such that each is inflated
+	 * only once
+	 */
+	private final ConcurrentHashMap<ObjectId, Boolean> pending = new ConcurrentHashMap<ObjectId, Boolean>();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final ThreadPoolExecutor writer;
+	private final Log log;
+
+	/**
+	 * @param directory
+	 *            the directory to store the blobs in; blobs stored there by a
+	 *            previous run are reused
+	 * @param maxBytes
+	 *            the disk space which the stored blobs may occupy
+	 * @param minObjectSize
+	 *            the size of the smallest blob which is stored
+	 * @param log
+	 *            the log to report failed writes to
+	 */
+	public BlobStore(File directory, long maxBytes, long minObjectSize, Log log) {
+		this.directory = directory;
+		this.log = log;
+		this.maxBytes = maxBytes;
+		this.minObjectSize = minObjectSize;
+		this.entries = new ConcurrentHashMap<ObjectId, Entry>();
+
+		// a single thread, such that writing does not compete with requests for the disk
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "gitservlet-blob-store");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		int foreign = 0;
+		File[] fanout = directory.listFiles();
+		if (fanout != null) {
+			for (File subdirectory : fanout) {
+				File[] files = isFanout(subdirectory) ? subdirectory.listFiles() : null;
+				if (files == null) {
+					foreign++;
+					continue;
+				}
+				for (File file : files) {
+					String name = subdirectory.getName() + file.getName();
+					if (ObjectId.isId(name) && file.isFile()) {
+						this.entries.put(ObjectId.fromString(name), new Entry(file, file.length(), file.lastModified()));
+						this.bytes.addAndGet(file.length());
+					} else if (isTempFile(file)) {
+						// interrupted by a previous shutdown
+						file.delete();
+					} else {
+						foreign++;
+					}
+				}
+			}
+		}
+		if (foreign > 0) {
+			// the directory may be shared by mistake; never delete what is not ours
+			this.log.warn("Blob store directory %s contains %d files which do not belong to the store; "
+					+ "they are left alone", directory, foreign);
+		}
+		this.trim();
+	}
+
+	/**
+	 * @return <code>true</code> if the file is one of the directories named
+	 *         by the first two hex digits of the blob ids
+	 */
+	private static boolean isFanout(File file) {
+		return file.isDirectory() && file.getName().matches("[0-9a-f]{2}");
+	}
+
+	/**
+	 * @return <code>true</code> if the file has been created by
+	 *         {@link #write(ObjectId, ObjectLoader)} and not been moved to its
+	 *         final name
+	 */
+	private static boolean isTempFile(File file) {
+		String name = file.getName();
+		return file.isFile() && name.endsWith(TEMP_SUFFIX)
+				&& name.length() > Constants.OBJECT_ID_STRING_LENGTH + TEMP_SUFFIX.length()
+				&& ObjectId.isId(name.substring(0, Constants.OBJECT_ID_STRING_LENGTH));
+	}
+
+	/**
+	 * @param size
+	 *            the size of a blob
+	 * @return <code>true</code> if a blob of this size shall be stored
+	 */
+	public boolean isCandidate(long size) {
+		return size >= this.minObjectSize && size <= this.maxBytes * (1 - TRIM_RATIO);
+	}
+
+	/**
+	 * opens a stored blob
+	 *
+	 * @param blobId
+	 *            the id of the blob
+	 * @return the loader of the stored file, or <code>null</code> if the blob
+	 *         is not stored
+	 */
+	public StoredLoader open(AnyObjectId blobId) {
+		Entry entry = this.entries.get(blobId);
+		if (entry != null && !entry.file.isFile()) {
+			// deleted behind our back; forget it, such that it is written again
+			if (this.entries.remove(blobId, entry)) {
+				this.bytes.addAndGet(-entry.size);
+			}
+			entry = null;
+		}
+		if (entry == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		this.hits.incrementAndGet();
+		entry.lastAccess = System.currentTimeMillis();
+		return new StoredLoader(entry);
+	}
+
+	/**
+	 * writes a blob to the store in the background; the blob is read from
+	 * the repository again by the background thread, so the caller may go on
+	 * sending it from its own loader. Nothing happens if the blob is stored
+	 * or being written already.
+	 *
+	 * @param repo
+	 *            the repository which contains the blob; it is kept open
+	 *            until the blob has been written
+	 * @param blobId
+	 *            the id of the blob
+	 */
+	public void storeInBackground(final Repository repo, AnyObjectId blobId) {
+		final ObjectId id = blobId.copy();
+		if (this.entries.containsKey(id)) {
+			return;
+		}
+		if (this.pending.putIfAbsent(id, Boolean.TRUE) != null) {
+			this.coalesced.incrementAndGet();
+			return;
+		}
+
+		repo.incrementOpen();
+		try {
+			this.writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						BlobStore.this.write(id, repo.open(id, Constants.OBJ_BLOB));
+					} catch (IOException | RuntimeException e) {
+						BlobStore.this.log.warn("Unable to store blob %s: %s", id.name(), e.toString());
+					} finally {
+						BlobStore.this.pending.remove(id);
+						repo.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// too many blobs are waiting; a later request will try again
+			this.pending.remove(id);
+			repo.close();
+		}
+	}
+
+	/**
+	 * stops writing blobs in the background; blobs which are being written
+	 * are discarded
+	 */
+	public void shutdown() {
+		this.writer.shutdownNow();
+	}
+
+	/**
+	 * writes a blob to the store
+	 *
+	 * @param blobId
+	 *            the id of the blob
+	 * @param loader
+	 *            the loader of the blob's content
+	 * @return the loader of the stored file, or <code>null</code> if the blob
+	 *         could not be written
+	 * @throws IOException
+	 *             if the blob cannot be read from the repository
+	 */
+	StoredLoader write(ObjectId blobId, ObjectLoader loader) throws IOException {
+		String name = blobId.name();
+		File file = new File(new File(this.directory, name.substring(0, 2)), name.substring(2));
+		file.getParentFile().mkdirs();
+
+		File temp;
+		try {
+			temp = File.createTempFile(name, TEMP_SUFFIX, file.getParentFile());
+		} catch (IOException e) {
+			// the blob is served from the repository anyway
+			return null;
+		}
+
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				loader.copyTo(out);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+
+		Entry entry = new Entry(file, file.length(), System.currentTimeMillis());
+		if (this.entries.put(blobId, entry) == null) {
+			if (this.bytes.addAndGet(entry.size) > this.maxBytes) {
+				this.trim();
+			}
+		}
+		return new StoredLoader(entry);
+	}
+
+	/**
+	 * deletes the least recently used blobs until the store is well within
+	 * its disk budget again
+	 */
+	private synchronized void trim() {
+		if (this.bytes.get() <= this.maxBytes) {
+			return;
+		}
+
+		List<Map.Entry<ObjectId, Entry>> candidates = new ArrayList<Map.Entry<ObjectId, Entry>>(
+				this.entries.entrySet());
+		Collections.sort(candidates, new Comparator<Map.Entry<ObjectId, Entry>>() {
+			@Override
+			public int compare(Map.Entry<ObjectId, Entry> e1, Map.Entry<ObjectId, Entry> e2) {
+				return Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess);
+			}
+		});
+
+		long now = System.currentTimeMillis();
+		for (Map.Entry<ObjectId, Entry> candidate : candidates) {
+			if (this.bytes.get() <= this.maxBytes * TRIM_RATIO) {
+				break;
+			}
+			if (candidate.getValue().pinnedUntil > now) {
+				continue;
+			}
+			// requests which have already opened the file may still read it
+			// (except on Windows, where deleting fails and the file is kept)
+			Entry entry = candidate.getValue();
+			if (entry.file.delete() && this.entries.remove(candidate.getKey(), entry)) {
+				this.bytes.addAndGet(-entry.size);
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of misses which have found the same blob being
+	 *         written already
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * @return the number of bytes currently stored
+	 */
+	public long getSize() {
+		return this.bytes.get();
+	}
+
+	/**
+	 * provides the content of a stored blob
+	 */
+	public static class StoredLoader extends ObjectLoader {
+		private final Entry entry;
+		private final File file;
+		private final long size;
+
+		private StoredLoader(Entry entry) {
+			this.entry = entry;
+			this.file = entry.file;
+			this.size = entry.size;
+		}
+
+		/**
+		 * protects the file from being deleted by the store for a while,
+		 * such that it can be handed over to the container
+		 */
+		public void pin() {
+			if (this.entry != null) {
+				this.entry.pinnedUntil = System.currentTimeMillis() + PIN_MILLIS;
+			}
+		}
+
+		/**
+		 * @return the file containing the blob's content, which may be sent
+		 *         with zero-copy mechanisms
+		 */
+		public File getFile() {
+			return this.file;
+		}
+
+		@Override
+		public int getType() {
+			return Constants.OBJ_BLOB;
+		}
+
+		@Override
+		public long getSize() {
+			return this.size;
+		}
+
+		@Override
+		public boolean isLarge() {
+			return true;
+		}
+
+		@Override
+		public byte[] getCachedBytes() throws LargeObjectException {
+			throw new LargeObjectException();
+		}
+
+		@Override
+		public ObjectStream openStream() throws MissingObjectException, IOException {
+			return new ObjectStream.Filter(this.getType(), this.size, new FileInputStream(this.file));
+		}
+
+		@Override
+		public void copyTo(OutputStream out) throws MissingObjectException, IOException {
+			Files.copy(this.file.toPath(), out);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes within a file, as requested by the HTTP Range header (see
+ * RFC 7233).
+ */
+public class ByteRange {
+	/**
+	 * the maximal number of ranges which are served in a single response;
+	 * requests with more ranges are answered with the full file
+	 */
+	private static final int MAX_RANGES = 16;
+
+	private final long start;
+	private final long end;
+
+	/**
+	 * @param start
+	 *            the position of the first byte of the range
+	 * @param end
+	 *            the position of the last byte of the range (inclusive)
+	 */
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return this.start;
+	}
+
+	public long getEnd() {
+		return this.end;
+	}
+
+	public long getLength() {
+		return this.end - this.start + 1;
+	}
+
+	/**
+	 * @param size
+	 *            the total size of the file
+	 * @return the value of the Content-Range header for this range
+	 */
+	public String toContentRange(long size) {
+		return String.format("bytes %d-%d/%d", this.start, this.end, size);
+	}
+
+	/**
+	 * parses the value of a Range header
+	 *
+	 * @param header
+	 *            the value of the Range header
+	 * @param size
+	 *            the total size of the file
+	 * @return the satisfiable ranges, sorted by their position and with
+	 *         overlapping ranges being merged; an empty list if none of the
+	 *         ranges can be satisfied; <code>null</code> if the header is
+	 *         invalid and therefore must be ignored
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		boolean anySpec = false;
+		for (String spec : specs) {
+			spec = spec.trim();
+			if (spec.isEmpty()) {
+				// empty list elements are allowed (RFC 7230, section 7)
+				continue;
+			}
+			anySpec = true;
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+
+			long start;
+			long end;
+			if (dash == 0) {
+				// suffix range: the last n bytes of the file
+				long suffix = parsePosition(spec.substring(1));
+				if (suffix < 0) {
+					return null;
+				}
+				start = Math.max(0, size - suffix);
+				end = suffix == 0 ? -1 : size - 1;
+			} else {
+				start = parsePosition(spec.substring(0, dash));
+				if (start < 0) {
+					return null;
+				}
+				if (dash == spec.length() - 1) {
+					// open range: up to the end of the file
+					end = size - 1;
+				} else {
+					end = parsePosition(spec.substring(dash + 1));
+					if (end < start) {
+						return null;
+					}
+					end = Math.min(end, size - 1);
+				}
+			}
+
+			if (start <= end) {
+				ranges.add(new ByteRange(start, end));
+			}
+			// else: the range is not satisfiable for this file; skip it
+		}
+		if (!anySpec) {
+			return null;
+		}
+
+		return merge(ranges);
+	}
+
+	/**
+	 * @return the position, or -1 if the text does not consist of digits
+	 *         only (signs, as accepted by Long.parseLong, are invalid)
+	 */
+	private static long parsePosition(String text) {
+		if (text.isEmpty()) {
+			return -1;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+		}
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			// too large
+			return -1;
+		}
+	}
+
+	private static List<ByteRange> merge(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+
+		/*
+		 * Serving the ranges in ascending order allows us to read the object
+		 * stream once from front to back.
+		 */
+		Collections.sort(ranges, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange a, ByteRange b) {
+				return Long.compare(a.start, b.start);
+			}
+		});
+
+		List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+		ByteRange current = ranges.get(0);
+		for (ByteRange next : ranges.subList(1, ranges.size())) {
+			if (next.start <= current.end + 1) {
+				current = new ByteRange(current.start, Math.max(current.end, next.end));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+}
@@ -0,0 +1,196 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+/**
+ * Keeps compressed variants of blobs in memory, keyed by blob id and content
+ * coding.
+ * <p>
+ * Each variant is compressed only once, with the best compression level, as
+ * the blob id identifies the content: cached variants never become stale.
+ * Blobs which do not compress well (like images or archives) are remembered
+ * as well, so that they are not compressed again on every request.
+ */
+public class CompressedBlobCache {
+	public static final String GZIP = "gzip";
+
+	/**
+	 * a variant is only kept if it saves at least this share of the bytes
+	 */
+	private static final double MAX_RATIO = 0.9;
+
+	/**
+	 * marks blobs for which compression does not pay off
+	 */
+	private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+	/**
+	 * the approximate heap size of a cache entry without the content
+	 */
+	private static final int ENTRY_OVERHEAD = 100;
+
+	private static class Key {
+		private final ObjectId blobId;
+		private final String encoding;
+
+		public Key(AnyObjectId blobId, String encoding) {
+			this.blobId = blobId.copy();
+			this.encoding = encoding;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.blobId.hashCode() * 31 + this.encoding.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.blobId.equals(other.blobId) && this.encoding.equals(other.encoding);
+		}
+	}
+
+	private final long maxBytes;
+	private final int minObjectSize;
+	private final int maxObjectSize;
+
+	/*
+	 * access-ordered and guarded by this
+	 */
+	private final LinkedHashMap<Key, byte[]> variants;
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxBytes
+	 *            the number of bytes of compressed content which may be
+	 *            cached
+	 * @param minObjectSize
+	 *            blobs smaller than this are never compressed
+	 * @param maxObjectSize
+	 *            blobs larger than this are never compressed
+	 */
+	public CompressedBlobCache(long maxBytes, int minObjectSize, int maxObjectSize) {
+		this.maxBytes = maxBytes;
+		this.minObjectSize = minObjectSize;
+		this.maxObjectSize = maxObjectSize;
+		this.variants = new LinkedHashMap<Key, byte[]>(256, 0.75f, true);
+	}
+
+	/**
+	 * @param size
+	 *            the size of a blob
+	 * @return <code>true</code> if a blob of this size may be compressed
+	 */
+	public boolean isCandidate(long size) {
+		return size >= this.minObjectSize && size <= this.maxObjectSize;
+	}
+
+	/**
+	 * provides the gzip variant of a blob, compressing it if necessary
+	 *
+	 * @param blobId
+	 *            the id of the blob
+	 * @param loader
+	 *            the loader of the blob's content; only read if the variant
+	 *            is not cached yet. The size must have been checked with
+	 *            {@link #isCandidate(long)} before.
+	 * @return the compressed content, or <code>null</code> if the blob does
+	 *         not compress well
+	 * @throws IOException
+	 *             if the blob cannot be read
+	 */
+	public byte[] getGzip(AnyObjectId blobId, ObjectLoader loader) throws IOException {
+		Key key = new Key(blobId, GZIP);
+		byte[] variant = this.get(key);
+		if (variant != null) {
+			this.hits.incrementAndGet();
+			return variant == INCOMPRESSIBLE ? null : variant;
+		}
+		this.misses.incrementAndGet();
+
+		long size = loader.getSize();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) (size / 4) + 64);
+		OutputStream out = new GZIPOutputStream(buffer) {
+			{
+				this.def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		loader.copyTo(out);
+		out.close();
+
+		variant = buffer.toByteArray();
+		if (variant.length > size * MAX_RATIO) {
+			variant = INCOMPRESSIBLE;
+		}
+		this.put(key, variant);
+		return variant == INCOMPRESSIBLE ? null : variant;
+	}
+
+	private synchronized byte[] get(Key key) {
+		return this.variants.get(key);
+	}
+
+	private synchronized void put(Key key, byte[] variant) {
+		byte[] previous = this.variants.put(key, variant);
+		if (previous != null) {
+			// another request has been faster
+			this.bytes -= ENTRY_OVERHEAD + previous.length;
+		}
+		this.bytes += ENTRY_OVERHEAD + variant.length;
+
+		Iterator<Map.Entry<Key, byte[]>> it = this.variants.entrySet().iterator();
+		while (this.bytes > this.maxBytes && it.hasNext()) {
+			Map.Entry<Key, byte[]> evicted = it.next();
+			it.remove();
+			this.bytes -= ENTRY_OVERHEAD + evicted.getValue().length;
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of bytes currently cached (approximately)
+	 */
+	public synchronized long getSize() {
+		return this.bytes;
+	}
+}
@@ -0,0 +1,57 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes passed on to an underlying stream. Closing this stream
+ * only flushes it, as the underlying stream (usually the one of the
+ * response) belongs to the caller.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private long count;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.out.write(b);
+		this.count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.out.write(b, off, len);
+		this.count += len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.flush();
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getCount() {
+		return this.count;
+	}
+}
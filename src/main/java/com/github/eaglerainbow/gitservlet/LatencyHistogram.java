@@ -0,0 +1,162 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * The buckets are log-linear: each power of two between 1 &micro;s and about
+ * 275 s is split into four buckets, so quantiles are reported with an error
+ * of at most 25%. Recording a value costs a few atomic increments and never
+ * allocates.
+ */
+public class LatencyHistogram {
+	/**
+	 * durations below 2^10 ns (about 1 &micro;s) end up in the first bucket
+	 */
+	private static final int MIN_EXP = 10;
+
+	/**
+	 * durations of 2^38 ns (about 275 s) and above end up in the last bucket
+	 */
+	private static final int MAX_EXP = 37;
+
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 2 + (MAX_EXP - MIN_EXP + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param nanos
+	 *            the duration which shall be recorded
+	 */
+	public void record(long nanos) {
+		this.counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+		this.count.increment();
+		this.sum.add(nanos);
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * @return the sum of all recorded durations in nanoseconds
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * estimates a quantile of the recorded durations
+	 *
+	 * @param quantile
+	 *            the quantile, between 0 and 1
+	 * @return the upper bound of the bucket containing the quantile, in
+	 *         nanoseconds; 0 if nothing has been recorded yet
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * @return the upper bounds of the buckets reported by
+	 *         {@link #getCumulativeCounts()} in nanoseconds: the powers of two
+	 *         from about 1 &micro;s to about 275 s
+	 */
+	public static long[] getBounds() {
+		long[] bounds = new long[MAX_EXP + 2 - MIN_EXP];
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = 1L << (MIN_EXP + i);
+		}
+		return bounds;
+	}
+
+	/**
+	 * provides the recorded durations in coarser buckets, as needed for a
+	 * histogram of Prometheus
+	 *
+	 * @return for each bound of {@link #getBounds()}, the number of recorded
+	 *         durations below it, followed by the number of all recorded
+	 *         durations; taken from a single snapshot, so the counts never
+	 *         decrease
+	 */
+	public long[] getCumulativeCounts() {
+		long[] cumulative = new long[MAX_EXP + 3 - MIN_EXP];
+		long seen = 0;
+		int bound = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			// the powers of two are bounds of the fine buckets as well
+			if (i == 1 + bound * SUB_BUCKETS) {
+				cumulative[bound++] = seen;
+			}
+			seen += this.counts.get(i);
+		}
+		cumulative[bound] = seen;
+		return cumulative;
+	}
+
+	private static int bucketOf(long nanos) {
+		if (nanos < (1L << MIN_EXP)) {
+			return 0;
+		}
+
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exp > MAX_EXP) {
+			return BUCKETS - 1;
+		}
+
+		int sub = (int) ((nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+		return 1 + (exp - MIN_EXP) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket == 0) {
+			return 1L << MIN_EXP;
+		}
+		if (bucket == BUCKETS - 1) {
+			return 1L << (MAX_EXP + 1);
+		}
+
+		int exp = MIN_EXP + (bucket - 1) / SUB_BUCKETS;
+		int sub = (bucket - 1) % SUB_BUCKETS;
+		return (1L << exp) + (sub + 1) * (1L << (exp - SUB_BITS));
+	}
+}
@@ -0,0 +1,41 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Signals that a request has been rejected, as the servlet (or the requested
+ * repository) is too busy to serve it in time. The client should retry later.
+ */
+public class LocalServiceUnavailableException extends LocalInternalServerException {
+	private static final long serialVersionUID = 1L;
+
+	private final int retryAfterSeconds;
+
+	/**
+	 * @param message
+	 *            the message for the client
+	 * @param retryAfterSeconds
+	 *            the time after which the client may retry the request
+	 */
+	public LocalServiceUnavailableException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public int getRetryAfterSeconds() {
+		return this.retryAfterSeconds;
+	}
+}
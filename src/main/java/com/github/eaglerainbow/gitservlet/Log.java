@@ -1,78 +1,295 @@
-package com.github.eaglerainbow.gitservlet;
-
-import java.util.logging.Level;
-
-import javax.servlet.GenericServlet;
-
-public class Log implements Cloneable {
-	private final GenericServlet servlet;
-	private String currentArea;
-	
-	public Log(GenericServlet servlet) { 
-		this.servlet = servlet;
-	}
-	
-	@Override
-	protected Object clone() throws CloneNotSupportedException {
-		Log clonedLog = new Log(this.servlet);
-		
-		return clonedLog;
-	}
-
-	public Log deriveSpecificLog(@SuppressWarnings("rawtypes") Class c) {
-		Log otherLog = null;
-		try {
-			otherLog = (Log) this.clone();
-		} catch (CloneNotSupportedException e) {
-			// may not happen
-			return null;
-		}
-		
-		otherLog.setArea(c.getName());
-		return otherLog;
-	}
-	
-	private void setArea(String area) {
-		this.currentArea = area;
-	}
-	
-	private void log(Level level, String area, String message, Throwable throwable) {
-		this.servlet.log(String.format("[%8s] - %30s: %s", level.getName(), area, message), throwable);
-	}
-	
-	public void log(Level level, String message, Throwable throwable) {
-		this.log(level, this.currentArea, message, throwable);
-	}
-	
-	public void warn(String message, Throwable throwable) {
-		this.log(Level.WARNING, message, throwable);
-	}
-	
-	public void info(String message, Throwable throwable) {
-		this.log(Level.INFO, message, throwable);
-	}
-	
-	public void severe(String message, Throwable throwable) {
-		this.log(Level.SEVERE, message, throwable);
-	}
-	
-	public void fine(String message, Throwable throwable) {
-		this.log(Level.FINE, message, throwable);
-	}
-	
-	public void warn(String message) {
-		this.log(Level.WARNING, message, null);
-	}
-	
-	public void info(String message) {
-		this.log(Level.INFO, message, null);
-	}
-	
-	public void severe(String message) {
-		this.log(Level.SEVERE, message, null);
-	}
-	
-	public void fine(String message) {
-		this.log(Level.FINE, message, null);
-	}
-}
+package com.github.eaglerainbow.gitservlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.servlet.GenericServlet;
+
+/**
+ * Writes messages to the log of the servlet container (or to standard error,
+ * as long as the servlet has not been initialized).
+ * <p>
+ * Messages below the level of the log are discarded before they are
+ * formatted; use the overloads taking a format and its arguments, such that
+ * a disabled message costs no more than a comparison. All logs derived from
+ * the same root share its level and its output. The output may be
+ * asynchronous: messages are then queued and written by a background thread,
+ * and dropped rather than blocking the caller if the queue is full.
+ */
+public class Log {
+	private static final int ASYNC_QUEUE_CAPACITY = 8192;
+
+	private final Output output;
+	private final String currentArea;
+
+	public Log(GenericServlet servlet) {
+		this(new Output(servlet), null);
+	}
+
+	/**
+	 * creates a log which writes to standard error
+	 */
+	public Log() {
+		this(new Output(null), null);
+	}
+
+	private Log(Output output, String area) {
+		this.output = output;
+		this.currentArea = area;
+	}
+
+	/**
+	 * @param c
+	 *            the class which is going to log
+	 * @return the log for this class, which shares level and output with
+	 *         this log; logs are created once per class and then reused
+	 */
+	public Log deriveSpecificLog(@SuppressWarnings("rawtypes") Class c) {
+		String area = c.getName();
+		Log otherLog = this.output.derived.get(area);
+		if (otherLog == null) {
+			otherLog = new Log(this.output, area);
+			Log existing = this.output.derived.putIfAbsent(area, otherLog);
+			if (existing != null) {
+				otherLog = existing;
+			}
+		}
+		return otherLog;
+	}
+
+	/**
+	 * sets the lowest level of messages which are written, for this log and
+	 * all logs derived from the same root
+	 *
+	 * @param level
+	 *            the level; <code>Level.OFF</code> discards all messages
+	 */
+	public void setLevel(Level level) {
+		this.output.threshold = level.intValue();
+	}
+
+	/**
+	 * @param level
+	 *            the level of a message
+	 * @return <code>true</code> if messages of this level are written
+	 */
+	public boolean isLoggable(Level level) {
+		int threshold = this.output.threshold;
+		return level.intValue() >= threshold && threshold != Level.OFF.intValue();
+	}
+
+	/**
+	 * @return <code>true</code> if messages of level FINE are written; allows
+	 *         to skip computing arguments of debug messages, which are
+	 *         expensive (or need to be boxed)
+	 */
+	public boolean isFineEnabled() {
+		return this.isLoggable(Level.FINE);
+	}
+
+	/**
+	 * hands messages over to a background thread from now on, such that
+	 * callers never wait for the output
+	 */
+	public synchronized void startAsyncOutput() {
+		if (this.output.writer == null) {
+			AsyncWriter writer = new AsyncWriter(this.output);
+			writer.start();
+			this.output.writer = writer;
+		}
+	}
+
+	/**
+	 * writes the messages which are still queued, and stops the background
+	 * thread (if any)
+	 */
+	public synchronized void shutdown() {
+		AsyncWriter writer = this.output.writer;
+		if (writer == null) {
+			return;
+		}
+		this.output.writer = null;
+
+		writer.interrupt();
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void log(Level level, String message, Throwable throwable) {
+		if (this.isLoggable(level)) {
+			this.output.write(level, this.currentArea, message, throwable);
+		}
+	}
+
+	private void logFormatted(Level level, String format, Object... args) {
+		if (this.isLoggable(level)) {
+			this.output.write(level, this.currentArea, String.format(format, args), null);
+		}
+	}
+
+	public void warn(String message, Throwable throwable) {
+		this.log(Level.WARNING, message, throwable);
+	}
+
+	public void info(String message, Throwable throwable) {
+		this.log(Level.INFO, message, throwable);
+	}
+
+	public void severe(String message, Throwable throwable) {
+		this.log(Level.SEVERE, message, throwable);
+	}
+
+	public void fine(String message, Throwable throwable) {
+		this.log(Level.FINE, message, throwable);
+	}
+
+	public void warn(String message) {
+		this.log(Level.WARNING, message, null);
+	}
+
+	public void info(String message) {
+		this.log(Level.INFO, message, null);
+	}
+
+	public void severe(String message) {
+		this.log(Level.SEVERE, message, null);
+	}
+
+	public void fine(String message) {
+		this.log(Level.FINE, message, null);
+	}
+
+	public void warn(String format, Object... args) {
+		this.logFormatted(Level.WARNING, format, args);
+	}
+
+	public void info(String format, Object... args) {
+		this.logFormatted(Level.INFO, format, args);
+	}
+
+	public void severe(String format, Object... args) {
+		this.logFormatted(Level.SEVERE, format, args);
+	}
+
+	/*
+	 * FINE is used on the hot path of each request; the overloads with a
+	 * fixed number of arguments avoid allocating the array of arguments if
+	 * the message is discarded anyway
+	 */
+
+	public void fine(String format, Object arg) {
+		if (this.isFineEnabled()) {
+			this.logFormatted(Level.FINE, format, arg);
+		}
+	}
+
+	public void fine(String format, Object arg1, Object arg2) {
+		if (this.isFineEnabled()) {
+			this.logFormatted(Level.FINE, format, arg1, arg2);
+		}
+	}
+
+	public void fine(String format, Object arg1, Object arg2, Object arg3) {
+		if (this.isFineEnabled()) {
+			this.logFormatted(Level.FINE, format, arg1, arg2, arg3);
+		}
+	}
+
+	/**
+	 * the state shared by a root log and all logs derived from it
+	 */
+	private static class Output {
+		private final GenericServlet servlet;
+		private final ConcurrentHashMap<String, Log> derived = new ConcurrentHashMap<String, Log>();
+		private volatile int threshold = Level.INFO.intValue();
+		private volatile AsyncWriter writer;
+
+		public Output(GenericServlet servlet) {
+			this.servlet = servlet;
+		}
+
+		public void write(Level level, String area, String message, Throwable throwable) {
+			AsyncWriter asyncWriter = this.writer;
+			if (asyncWriter != null) {
+				asyncWriter.enqueue(new Record(level, area, message, throwable));
+			} else {
+				this.writeNow(level, area, message, throwable);
+			}
+		}
+
+		public void writeNow(Level level, String area, String message, Throwable throwable) {
+			String line = String.format("[%8s] - %30s: %s", level.getName(), area, message);
+			if (this.servlet != null && this.servlet.getServletConfig() != null) {
+				this.servlet.log(line, throwable);
+			} else {
+				System.err.println(line);
+				if (throwable != null) {
+					throwable.printStackTrace(System.err);
+				}
+			}
+		}
+	}
+
+	private static class Record {
+		private final Level level;
+		private final String area;
+		private final String message;
+		private final Throwable throwable;
+
+		public Record(Level level, String area, String message, Throwable throwable) {
+			this.level = level;
+			this.area = area;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+
+	private static class AsyncWriter extends Thread {
+		private final Output output;
+		private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(ASYNC_QUEUE_CAPACITY);
+		private final AtomicLong dropped = new AtomicLong();
+
+		public AsyncWriter(Output output) {
+			super("gitservlet-log");
+			this.output = output;
+			this.setDaemon(true);
+		}
+
+		public void enqueue(Record record) {
+			if (!this.queue.offer(record)) {
+				this.dropped.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					this.write(this.queue.take());
+				}
+			} catch (InterruptedException e) {
+				// shutting down; write what is left
+				Record record;
+				while ((record = this.queue.poll()) != null) {
+					this.write(record);
+				}
+			}
+		}
+
+		private void write(Record record) {
+			long droppedCount = this.dropped.getAndSet(0);
+			if (droppedCount > 0) {
+				this.output.writeNow(Level.WARNING, Log.class.getName(),
+						String.format("%d messages have been dropped, as the log could not keep up", droppedCount), null);
+			}
+			this.output.writeNow(record.level, record.area, record.message, record.throwable);
+		}
+	}
+}
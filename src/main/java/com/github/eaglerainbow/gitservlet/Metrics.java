@@ -0,0 +1,250 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the processing times of requests per repository and renders
+ * them (together with further values provided by the RepoBase) in the text
+ * format of Prometheus.
+ */
+public class Metrics {
+	/**
+	 * the stages of processing a request, as already used for the debug
+	 * profiler header
+	 */
+	public enum Stage {
+		DETERMINE_LOCATION("determine_location"),
+		DETERMINE_REPOSITORY("determine_repository"),
+		/**
+		 * waiting for a slot of the admission control
+		 */
+		ADMISSION("admission"),
+		OPEN_REPOSITORY("open_repository"),
+		RESOLVE_REFERENCE("resolve_reference"),
+		RESOLVE_FILE("resolve_file"),
+		TRANSFER("transfer");
+
+		private final String label;
+
+		private Stage(String label) {
+			this.label = label;
+		}
+	}
+
+	/**
+	 * the metrics of a single repository
+	 */
+	public static class RepositoryMetrics {
+		private final LatencyHistogram[] stages;
+		private final LongAdder bytesSent = new LongAdder();
+
+		public RepositoryMetrics() {
+			this.stages = new LatencyHistogram[Stage.values().length];
+			for (int i = 0; i < this.stages.length; i++) {
+				this.stages[i] = new LatencyHistogram();
+			}
+		}
+
+		public void record(Stage stage, long nanos) {
+			this.stages[stage.ordinal()].record(nanos);
+		}
+
+		public void addBytesSent(long bytes) {
+			this.bytesSent.add(bytes);
+		}
+	}
+
+	private final ConcurrentHashMap<String, RepositoryMetrics> repositories;
+
+	public Metrics() {
+		this.repositories = new ConcurrentHashMap<String, RepositoryMetrics>();
+	}
+
+	/**
+	 * @param name
+	 *            the name of a registered repository
+	 * @return the metrics of this repository
+	 */
+	public RepositoryMetrics forRepository(String name) {
+		RepositoryMetrics metrics = this.repositories.get(name);
+		if (metrics == null) {
+			metrics = new RepositoryMetrics();
+			RepositoryMetrics existing = this.repositories.putIfAbsent(name, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * drops the metrics of a repository which has been removed
+	 *
+	 * @param name
+	 *            the name of the repository
+	 */
+	public void remove(String name) {
+		this.repositories.remove(name);
+	}
+
+	/**
+	 * writes the latencies and the transferred bytes of all repositories
+	 *
+	 * @param out
+	 *            the writer to write to
+	 */
+	public void write(PrintWriter out) {
+		// sorted, such that subsequent scrapes are easy to compare
+		Map<String, RepositoryMetrics> sorted = new TreeMap<String, RepositoryMetrics>(this.repositories);
+
+		/*
+		 * Exported as histogram, not as quantiles: Prometheus computes the
+		 * quantiles over any time window from the rate of the buckets, and
+		 * across instances as well.
+		 */
+		long[] bounds = LatencyHistogram.getBounds();
+		out.println("# HELP gitservlet_stage_seconds Time spent in each stage of processing a request.");
+		out.println("# TYPE gitservlet_stage_seconds histogram");
+		for (Map.Entry<String, RepositoryMetrics> entry : sorted.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram histogram = entry.getValue().stages[stage.ordinal()];
+				String labels = String.format("repository=\"%s\",stage=\"%s\"", escape(entry.getKey()), stage.label);
+				long[] counts = histogram.getCumulativeCounts();
+				for (int i = 0; i < bounds.length; i++) {
+					out.format(Locale.ROOT, "gitservlet_stage_seconds_bucket{%s,le=\"%s\"} %d\n", labels,
+							Double.toString(bounds[i] / 1e9), counts[i]);
+				}
+				out.format(Locale.ROOT, "gitservlet_stage_seconds_bucket{%s,le=\"+Inf\"} %d\n", labels,
+						counts[bounds.length]);
+				out.format(Locale.ROOT, "gitservlet_stage_seconds_sum{%s} %.6f\n", labels, histogram.getSum() / 1e9);
+				out.format(Locale.ROOT, "gitservlet_stage_seconds_count{%s} %d\n", labels, counts[bounds.length]);
+			}
+		}
+
+		out.println("# HELP gitservlet_sent_bytes_total Bytes of file content sent to clients.");
+		out.println("# TYPE gitservlet_sent_bytes_total counter");
+		for (Map.Entry<String, RepositoryMetrics> entry : sorted.entrySet()) {
+			out.format(Locale.ROOT, "gitservlet_sent_bytes_total{repository=\"%s\"} %d\n", escape(entry.getKey()),
+					entry.getValue().bytesSent.sum());
+		}
+	}
+
+	/**
+	 * writes the hit and miss counters and the hit ratios of caches
+	 *
+	 * @param out
+	 *            the writer to write to
+	 * @param caches
+	 *            the number of hits and misses (in this order) per name of
+	 *            the cache
+	 */
+	public static void writeCaches(PrintWriter out, Map<String, long[]> caches) {
+		out.println("# HELP gitservlet_cache_hits_total Lookups which have been answered by a cache.");
+		out.println("# TYPE gitservlet_cache_hits_total counter");
+		for (Map.Entry<String, long[]> entry : caches.entrySet()) {
+			out.format(Locale.ROOT, "gitservlet_cache_hits_total{cache=\"%s\"} %d\n", entry.getKey(),
+					entry.getValue()[0]);
+		}
+
+		out.println("# HELP gitservlet_cache_misses_total Lookups which could not be answered by a cache.");
+		out.println("# TYPE gitservlet_cache_misses_total counter");
+		for (Map.Entry<String, long[]> entry : caches.entrySet()) {
+			out.format(Locale.ROOT, "gitservlet_cache_misses_total{cache=\"%s\"} %d\n", entry.getKey(),
+					entry.getValue()[1]);
+		}
+
+		out.println("# HELP gitservlet_cache_hit_ratio Share of the lookups which have been answered by a cache.");
+		out.println("# TYPE gitservlet_cache_hit_ratio gauge");
+		for (Map.Entry<String, long[]> entry : caches.entrySet()) {
+			long total = entry.getValue()[0] + entry.getValue()[1];
+			out.format(Locale.ROOT, "gitservlet_cache_hit_ratio{cache=\"%s\"} %.4f\n", entry.getKey(),
+					total == 0 ? 0.0 : (double) entry.getValue()[0] / total);
+		}
+	}
+
+	/**
+	 * writes the number of cache misses which have waited for a concurrent
+	 * load of the same key instead of loading it themselves
+	 *
+	 * @param out
+	 *            the writer to write to
+	 * @param coalesced
+	 *            the number of coalesced misses per name of the cache
+	 */
+	public static void writeCoalesced(PrintWriter out, Map<String, Long> coalesced) {
+		out.println("# HELP gitservlet_cache_coalesced_total Cache misses which have waited for a concurrent load of the same key.");
+		out.println("# TYPE gitservlet_cache_coalesced_total counter");
+		for (Map.Entry<String, Long> entry : coalesced.entrySet()) {
+			out.format(Locale.ROOT, "gitservlet_cache_coalesced_total{cache=\"%s\"} %d\n", entry.getKey(),
+					entry.getValue());
+		}
+	}
+
+	/**
+	 * writes a single value
+	 *
+	 * @param out
+	 *            the writer to write to
+	 * @param name
+	 *            the name of the metric
+	 * @param type
+	 *            the Prometheus type of the metric ("gauge" or "counter")
+	 * @param help
+	 *            the description of the metric
+	 * @param value
+	 *            the current value
+	 */
+	public static void writeValue(PrintWriter out, String name, String type, String help, double value) {
+		out.format("# HELP %s %s\n", name, help);
+		out.format("# TYPE %s %s\n", name, type);
+		out.format(Locale.ROOT, "%s %s\n", name, value == Math.rint(value) ? Long.toString((long) value)
+				: Double.toString(value));
+	}
+
+	/**
+	 * writes a value per repository
+	 *
+	 * @param out
+	 *            the writer to write to
+	 * @param name
+	 *            the name of the metric
+	 * @param type
+	 *            the Prometheus type of the metric ("gauge" or "counter")
+	 * @param help
+	 *            the description of the metric
+	 * @param values
+	 *            the current value per name of the repository
+	 */
+	public static void writeRepositoryValues(PrintWriter out, String name, String type, String help,
+			Map<String, Long> values) {
+		out.format("# HELP %s %s\n", name, help);
+		out.format("# TYPE %s %s\n", name, type);
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			out.format(Locale.ROOT, "%s{repository=\"%s\"} %d\n", name, escape(entry.getKey()), entry.getValue());
+		}
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
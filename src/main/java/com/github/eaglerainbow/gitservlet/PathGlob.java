@@ -0,0 +1,79 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.regex.Pattern;
+
+/**
+ * A glob pattern for paths within a tree, like "config/**&#47;*.json".
+ * <p>
+ * "*" and "?" match any characters respectively a single character within
+ * a path segment; "**" matches across segments ("**&#47;" also matches no
+ * directory at all).
+ */
+public class PathGlob {
+	private final Pattern pattern;
+	private final String prefix;
+
+	public PathGlob(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int firstWildcard = -1;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (firstWildcard < 0) {
+					firstWildcard = i;
+				}
+			}
+
+			if (glob.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 2;
+			} else if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i += 1;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		this.pattern = Pattern.compile(regex.toString());
+
+		String literal = firstWildcard < 0 ? glob : glob.substring(0, firstWildcard);
+		this.prefix = literal.substring(0, Math.max(0, literal.lastIndexOf('/')));
+	}
+
+	/**
+	 * @param path
+	 *            a path within the tree
+	 * @return <code>true</code> if the pattern matches the whole path
+	 */
+	public boolean matches(String path) {
+		return this.pattern.matcher(path).matches();
+	}
+
+	/**
+	 * @return the directory which contains all matching paths (the empty
+	 *         string for the root of the tree); only this directory needs to
+	 *         be walked
+	 */
+	public String getPrefix() {
+		return this.prefix;
+	}
+}
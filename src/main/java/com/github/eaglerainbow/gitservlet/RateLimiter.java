@@ -0,0 +1,150 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are sent (token bucket).
+ * <p>
+ * Callers reserve the bytes they are about to send; the bucket may run into
+ * debt, and the caller then sleeps until the debt would have been paid off
+ * at the configured rate. Bursts of up to one second's worth of bytes pass
+ * without delay. The lock is only held for the bookkeeping, not while
+ * sleeping.
+ */
+public class RateLimiter {
+	/**
+	 * the largest number of bytes reserved at once, such that concurrent
+	 * transfers take turns
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private final long bytesPerSecond;
+
+	/*
+	 * guarded by this
+	 */
+	private long available;
+	private long lastRefill;
+
+	/**
+	 * @param bytesPerSecond
+	 *            the sustained rate
+	 */
+	public RateLimiter(long bytesPerSecond) {
+		this(bytesPerSecond, System.nanoTime());
+	}
+
+	RateLimiter(long bytesPerSecond, long now) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.available = bytesPerSecond;
+		this.lastRefill = now;
+	}
+
+	/**
+	 * reserves bytes, waiting if the rate has been exceeded
+	 *
+	 * @param bytes
+	 *            the number of bytes which are about to be sent
+	 * @throws InterruptedIOException
+	 *             if the thread has been interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		long waitNanos = this.reserve(bytes, System.nanoTime());
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling the transfer");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of nanoseconds the caller has to wait
+	 */
+	synchronized long reserve(long bytes, long now) {
+		long refill = this.bytesIn(now - this.lastRefill);
+		if (this.available + refill >= this.bytesPerSecond) {
+			this.available = this.bytesPerSecond;
+			this.lastRefill = now;
+		} else if (refill > 0) {
+			// keep the fraction of a byte which has not been credited yet
+			this.available += refill;
+			this.lastRefill += this.nanosFor(refill);
+		}
+
+		this.available -= bytes;
+		if (this.available >= 0) {
+			return 0;
+		}
+		return this.nanosFor(-this.available);
+	}
+
+	/*
+	 * both conversions split the product at whole seconds, as it would
+	 * overflow after a minute and a half of idling at 100 MB/s otherwise
+	 */
+
+	private long bytesIn(long nanos) {
+		long second = TimeUnit.SECONDS.toNanos(1);
+		return nanos / second * this.bytesPerSecond + nanos % second * this.bytesPerSecond / second;
+	}
+
+	private long nanosFor(long bytes) {
+		long second = TimeUnit.SECONDS.toNanos(1);
+		return bytes / this.bytesPerSecond * second + bytes % this.bytesPerSecond * second / this.bytesPerSecond;
+	}
+
+	/**
+	 * @param out
+	 *            the stream to the client
+	 * @param limiters
+	 *            the limits which apply to the transfer
+	 * @return a stream which forwards to <code>out</code> no faster than all
+	 *         of the limits allow
+	 */
+	public static OutputStream throttle(OutputStream out, final RateLimiter... limiters) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				for (RateLimiter limiter : limiters) {
+					limiter.acquire(1);
+				}
+				this.out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int chunk = Math.min(len, CHUNK_SIZE);
+					for (RateLimiter limiter : limiters) {
+						limiter.acquire(chunk);
+					}
+					this.out.write(b, off, chunk);
+					off += chunk;
+					len -= chunk;
+				}
+			}
+		};
+	}
+}
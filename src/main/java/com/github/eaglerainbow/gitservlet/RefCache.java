@@ -0,0 +1,173 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Caches the resolution of reference names (like "master" or "v1.0") to
+ * object ids, per repository.
+ * <p>
+ * Unlike the other caches, the content of this cache becomes stale whenever
+ * a reference is updated. The RepoBase therefore watches the references of
+ * each repository and calls {@link #invalidate(String)} on every change.
+ */
+public class RefCache {
+	/**
+	 * marks reference names which do not exist in the repository
+	 */
+	private static final ObjectId MISSING = ObjectId.zeroId();
+
+	/**
+	 * compares an object by identity (the maps of the repositories compare
+	 * their content, and a new map equals any other empty one)
+	 */
+	private static class Identity {
+		private final Object object;
+
+		public Identity(Object object) {
+			this.object = object;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Identity && ((Identity) other).object == this.object;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this.object);
+		}
+	}
+
+	private final int maxRefsPerRepository;
+
+	/**
+	 * the resolved references per repository. Invalidation replaces the map
+	 * of a repository as a whole; a request which has read a reference just
+	 * before the invalidation thus only writes to the discarded map.
+	 */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, ObjectId>> repositories;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * coalesces concurrent lookups of the same reference, keyed by the map of
+	 * the repository (compared by identity) and the reference name; a lookup
+	 * starting after an invalidation thus never joins one which started
+	 * before it, and which may return the outdated object id
+	 */
+	private final SingleFlight<List<Object>, ObjectId> lookups = new SingleFlight<List<Object>, ObjectId>();
+
+	/**
+	 * @param maxRefsPerRepository
+	 *            the maximal number of reference names which are cached per
+	 *            repository
+	 */
+	public RefCache(int maxRefsPerRepository) {
+		this.maxRefsPerRepository = maxRefsPerRepository;
+		this.repositories = new ConcurrentHashMap<String, ConcurrentHashMap<String, ObjectId>>();
+	}
+
+	/**
+	 * resolves a reference name within a repository
+	 *
+	 * @param repoName
+	 *            the name of the repository within the RepoBase
+	 * @param repo
+	 *            the opened repository
+	 * @param refName
+	 *            the (possibly abbreviated) name of the reference
+	 * @return the object id the reference points to, or <code>null</code> if
+	 *         there is no such reference
+	 * @throws IOException
+	 *             if the references cannot be read
+	 */
+	public ObjectId resolve(String repoName, final Repository repo, final String refName) throws IOException {
+		ConcurrentHashMap<String, ObjectId> refs = this.repositories.get(repoName);
+		if (refs == null) {
+			refs = new ConcurrentHashMap<String, ObjectId>();
+			ConcurrentHashMap<String, ObjectId> existing = this.repositories.putIfAbsent(repoName, refs);
+			if (existing != null) {
+				refs = existing;
+			}
+		}
+
+		ObjectId id = refs.get(refName);
+		if (id != null) {
+			this.hits.incrementAndGet();
+			return id == MISSING ? null : id;
+		}
+		this.misses.incrementAndGet();
+
+		final ConcurrentHashMap<String, ObjectId> target = refs;
+		List<Object> key = Arrays.<Object> asList(new Identity(refs), refName);
+		id = this.lookups.load(key, new SingleFlight.Loader<ObjectId>() {
+			@Override
+			public ObjectId load() throws IOException {
+				Ref ref = repo.findRef(refName);
+				ObjectId found = ref == null || ref.getObjectId() == null ? MISSING : ref.getObjectId();
+				if (target.size() < RefCache.this.maxRefsPerRepository) {
+					target.put(refName, found);
+				}
+				return found;
+			}
+		});
+		return id == MISSING ? null : id;
+	}
+
+	/**
+	 * discards all cached references of a repository
+	 *
+	 * @param repoName
+	 *            the name of the repository within the RepoBase
+	 */
+	public void invalidate(String repoName) {
+		this.repositories.remove(repoName);
+	}
+
+	/**
+	 * discards all cached references
+	 */
+	public void clear() {
+		this.repositories.clear();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of misses which have waited for a concurrent lookup
+	 *         of the same reference
+	 */
+	public long getCoalescedCount() {
+		return this.lookups.getCoalescedCount();
+	}
+}
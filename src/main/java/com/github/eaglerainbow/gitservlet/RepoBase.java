@@ -1,166 +1,1013 @@
-package com.github.eaglerainbow.gitservlet;
-/*
- * Copyright 2015 Nico Schmoigl
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
-import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchEvent.Kind;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.HashMap;
-
-public class RepoBase {
-	private final HashMap<String, File> repoPaths;
-	private File baseDir;
-	
-	/* for concept, see also https://docs.oracle.com/javase/tutorial/essential/io/notification.html */
-	private WatchService watcher;
-	private WatchKey watchKey;
-	private WatchThread watchThread;
-	
-	public RepoBase(File baseDir) {
-		this.repoPaths = new HashMap<String, File>();
-		this.baseDir = baseDir;
-
-		if (baseDir == null) {
-			throw new Error("No Base Dir provided");
-		}
-		
-		this.initialize();
-		
-		try {
-			this.watcher = FileSystems.getDefault().newWatchService();
-			this.watchKey = this.baseDir.toPath().register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-			
-			this.watchThread = new WatchThread();
-			this.watchThread.start();
-		} catch (IOException e) {
-			this.watcher = null;
-			System.err.println("Unable to register file change notification service!");
-			e.printStackTrace(System.err);
-		}
-	}
-
-	private class WatchThread extends Thread {
-		public WatchThread() {
-			super("WatchThread BaseDirectory "+baseDir.toString());
-		}
-		
-		@Override
-		public void run() {
-			for (;;) {
-				WatchKey key = null;
-				try {
-					key = watcher.take();
-				} catch (InterruptedException e) {
-					return; // stop execution
-				}
-				
-				if (key == null) {
-					// nothing there to process
-					continue;
-				}
-				
-				for (WatchEvent<?> event : key.pollEvents()) {
-					Kind<?> kind = event.kind();
-					
-					if (kind == OVERFLOW) {
-						// Attempt to reinitialize
-						repoPaths.clear();
-						initialize();
-						// TODO does this work this way?
-						break;
-					}
-					
-					WatchEvent<Path> evp = (WatchEvent<Path>) event;
-					
-					// Context for directory entry event is the file name of entry
-					Path name = evp.context(); // that subdir has triggered the change
-					Path fullpath = baseDir.toPath().resolve(name.toString());
-					
-					System.err.format("%s: %s\n", evp.kind().name(), fullpath.toString());
-					
-					if (kind == ENTRY_CREATE) {
-						// new directory has been added
-						repoPaths.put(name.toFile().getName(), fullpath.toFile());
-						/*
-						 * Note that although this is in a concurrent thread situation,
-						 * this thread is the only thread which is allowed to perform
-						 * changes to the HashMap. All other threads are just reading
-						 * it and may experience a "dirty read". 
-						 * Therefore, we do not need to set a lock here. 
-						 */
-						
-						System.err.format("New repository %s has been registered from %s.\n", name.toFile().getName(), fullpath.toFile().toString());
-					} else if (kind == ENTRY_DELETE) {
-						// repository has been removed
-						repoPaths.remove(name.toFile().getName());
-						/*
-						 * concerning locking: see comment above in the ENTRY_CREATE case.
-						 */
-						System.err.format("Repository %s has been deregistered.\n", name.toFile().getName());
-					} else if (kind == ENTRY_MODIFY) {
-						// modification?
-						// TODO what does this mean? Change of attributes / change of date time stamp or what?
-						/* Analysis: change within the directory does not trigger a change of
-						 * the directory itself - at least on Windows 
-						 */
-						System.err.format("Repository %s has been modified.\n", name.toFile().getName());
-					}
-				}	
-				
-				key.reset();
-				// TODO if returned false, the baseDir has been deleted in the meantime => argl! --> error handling required
-			}
-		}
-		
-	}
-	
-	public void shutdown() {
-		this.watchThread.interrupt();
-	}
-
-	private void initialize() {
-		// retrieve initial state in the baseDir directory
-		// and pre-fill the repoPaths
-		for (File subDir : this.baseDir.listFiles()) {
-			System.err.format("Repository %s has been initialized from %s.\n", subDir.getName(), subDir.toString());
-			this.repoPaths.put(subDir.getName(), subDir);
-		}
-	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		super.finalize();
-		
-		// remove the registration for the baseDir
-		if (this.watchKey != null) {
-			this.watchKey.cancel();
-		}
-	}
-
-	public File getRepository(String name) {
-		return this.repoPaths.get(name);
-	}
-}
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+
+public class RepoBase {
+	/**
+	 * the maximal number of repositories which are kept open at the same time
+	 */
+	private static final int MAX_OPEN_REPOSITORIES = 64;
+
+	/**
+	 * the time after which an open repository which has not been requested
+	 * anymore is closed
+	 */
+	private static final long MAX_IDLE_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * the approximate amount of heap memory used for caching the resolution
+	 * of paths within commits
+	 */
+	private static final long TREE_PATH_CACHE_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * the amount of (off-heap) memory used for caching the content of small
+	 * files
+	 */
+	private static final long BLOB_CACHE_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * the size of the largest file whose content is cached
+	 */
+	private static final int BLOB_CACHE_MAX_OBJECT_SIZE = 256 * 1024;
+
+	/**
+	 * the amount of heap memory used for caching compressed variants of files
+	 */
+	private static final long COMPRESSED_CACHE_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * files smaller than this are sent uncompressed, as the savings would not
+	 * outweigh the additional header and the effort of the client
+	 */
+	private static final int COMPRESSION_MIN_OBJECT_SIZE = 256;
+
+	/**
+	 * files larger than this are sent uncompressed, as they would have to be
+	 * compressed in memory
+	 */
+	private static final int COMPRESSION_MAX_OBJECT_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * the disk space used for caching archives of directories
+	 */
+	private static final long ARCHIVE_CACHE_BYTES = 1024L * 1024 * 1024;
+
+	/**
+	 * the size of the largest archive which is cached
+	 */
+	private static final long ARCHIVE_CACHE_MAX_ARCHIVE_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * the maximal number of reference names per repository whose resolution
+	 * is cached
+	 */
+	private static final int MAX_CACHED_REFS_PER_REPOSITORY = 10000;
+
+	/**
+	 * the directory within the git directory which contains the loose
+	 * references
+	 */
+	private static final String REFS_DIR = "refs";
+
+	/**
+	 * the time after which the registration of the base directory is retried,
+	 * if it cannot be watched (e.g. because it has been removed)
+	 */
+	private static final long BASE_DIR_RETRY_SECONDS = 10;
+
+	/**
+	 * immutable snapshot of the registered repositories. Only the WatchThread
+	 * (and the constructor) register or deregister repositories; they replace
+	 * the snapshot as a whole. Request threads thus never need to lock and can
+	 * never observe a partially updated registry.
+	 */
+	private volatile Map<String, File> repoPaths;
+	private final RepositoryPool repositoryPool;
+	private final TreePathCache treePathCache;
+	private final BlobCache blobCache;
+	private final CompressedBlobCache compressedBlobCache;
+	private final ArchiveCache archiveCache;
+
+	/**
+	 * the optional store of large blobs on disk; <code>null</code> unless
+	 * enabled by {@link #enableBlobStore(File, long, long)}
+	 */
+	private volatile BlobStore blobStore;
+
+	/**
+	 * the configuration of JGit's pack file cache, as installed by
+	 * {@link #configureStorage(WindowCacheConfig)}; JGit's defaults otherwise
+	 */
+	private volatile WindowCacheConfig storageConfig = new WindowCacheConfig();
+
+	/**
+	 * limits the requests served concurrently; <code>null</code> if requests
+	 * are not limited
+	 */
+	private volatile AdmissionControl admissionControl;
+	private final RefCache refCache;
+	private final Metrics metrics;
+	private final Log log;
+	private File baseDir;
+	
+	/* for concept, see also https://docs.oracle.com/javase/tutorial/essential/io/notification.html */
+	private WatchService watcher;
+	private WatchKey watchKey;
+	private WatchThread watchThread;
+
+	/**
+	 * the directories within the repositories which are watched for changes
+	 * of references; only accessed by the WatchThread (and by the constructor
+	 * before the WatchThread is started)
+	 */
+	private final HashMap<WatchKey, RefWatch> refWatches;
+
+	/**
+	 * the names of the repositories whose references are watched, i.e. whose
+	 * references may be cached
+	 */
+	private final Set<String> watchedRepos;
+
+	private static class RefWatch {
+		private final String repoName;
+
+		/**
+		 * <code>true</code> if the directory is <code>refs/</code> or one of
+		 * its subdirectories; <code>false</code> for the repository's root
+		 * directory or its <code>.git</code> directory
+		 */
+		private final boolean refsTree;
+
+		public RefWatch(String repoName, boolean refsTree) {
+			this.repoName = repoName;
+			this.refsTree = refsTree;
+		}
+	}
+
+	private WarmUpThread warmUpThread;
+	private RepositoryMaintenance maintenance;
+	private volatile boolean warmedUp = true;
+	
+	/**
+	 * creates a RepoBase which logs to standard error
+	 * 
+	 * @param baseDir
+	 *            the directory containing the repositories
+	 */
+	public RepoBase(File baseDir) {
+		this(baseDir, new Log());
+	}
+
+	public RepoBase(File baseDir, Log log) {
+		this.log = log.deriveSpecificLog(RepoBase.class);
+		this.repoPaths = Collections.emptyMap();
+		this.repositoryPool = new RepositoryPool(MAX_OPEN_REPOSITORIES, MAX_IDLE_MILLIS);
+		this.treePathCache = new TreePathCache(TREE_PATH_CACHE_BYTES);
+		this.blobCache = new BlobCache(BLOB_CACHE_BYTES, BLOB_CACHE_MAX_OBJECT_SIZE);
+		this.compressedBlobCache = new CompressedBlobCache(COMPRESSED_CACHE_BYTES, COMPRESSION_MIN_OBJECT_SIZE,
+				COMPRESSION_MAX_OBJECT_SIZE);
+		this.archiveCache = new ArchiveCache(new File(System.getProperty("java.io.tmpdir"), "gitservlet-archives"),
+				ARCHIVE_CACHE_BYTES, ARCHIVE_CACHE_MAX_ARCHIVE_SIZE);
+		this.refCache = new RefCache(MAX_CACHED_REFS_PER_REPOSITORY);
+		this.metrics = new Metrics();
+		this.refWatches = new HashMap<WatchKey, RefWatch>();
+		this.watchedRepos = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.baseDir = baseDir;
+
+		if (baseDir == null) {
+			throw new Error("No Base Dir provided");
+		}
+		
+		try {
+			this.watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			this.watcher = null;
+			this.log.warn("Unable to register file change notification service!", e);
+		}
+
+		// watch before scanning, such that no new repository can be missed
+		this.registerBaseDir();
+
+		// also registers the watches for the references of each repository
+		this.initialize();
+		
+		if (this.watcher != null) {
+			this.watchThread = new WatchThread();
+			this.watchThread.start();
+		}
+	}
+
+	private boolean registerBaseDir() {
+		if (this.watcher == null) {
+			return false;
+		}
+
+		try {
+			this.watchKey = this.baseDir.toPath().register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			return true;
+		} catch (IOException e) {
+			this.log.warn("Unable to watch base directory %s (retrying in %d seconds): %s",
+					this.baseDir.toString(), BASE_DIR_RETRY_SECONDS, e.toString());
+			this.watchKey = null;
+			return false;
+		}
+	}
+
+	/**
+	 * adds a repository to the registry; may only be called by the
+	 * WatchThread (or the constructor)
+	 */
+	private void registerRepository(String name, File dir) {
+		HashMap<String, File> updated = new HashMap<String, File>(this.repoPaths);
+		updated.put(name, dir);
+		this.repoPaths = Collections.unmodifiableMap(updated);
+
+		this.watchReferences(name, dir);
+	}
+
+	/**
+	 * removes a repository from the registry; may only be called by the
+	 * WatchThread (or the constructor)
+	 */
+	private void deregisterRepository(String name) {
+		HashMap<String, File> updated = new HashMap<String, File>(this.repoPaths);
+		updated.remove(name);
+		this.repoPaths = Collections.unmodifiableMap(updated);
+
+		this.unwatchReferences(name);
+		this.repositoryPool.invalidate(name);
+		this.refCache.invalidate(name);
+		this.metrics.remove(name);
+	}
+
+	private class WatchThread extends Thread {
+		public WatchThread() {
+			super("WatchThread BaseDirectory "+baseDir.toString());
+		}
+		
+		@Override
+		public void run() {
+			for (;;) {
+				if (watchKey == null && registerBaseDir()) {
+					// the base directory is back; changes may have been missed
+					initialize();
+				}
+
+				WatchKey key = null;
+				try {
+					if (watchKey == null) {
+						// continue processing the repositories, but retry the base directory from time to time
+						key = watcher.poll(BASE_DIR_RETRY_SECONDS, TimeUnit.SECONDS);
+					} else {
+						key = watcher.take();
+					}
+				} catch (InterruptedException | ClosedWatchServiceException e) {
+					return; // stop execution
+				}
+				
+				if (key == null) {
+					// nothing there to process
+					continue;
+				}
+
+				if (key != watchKey) {
+					// a change within a repository
+					processRefWatchEvents(key);
+					continue;
+				}
+				
+				for (WatchEvent<?> event : key.pollEvents()) {
+					Kind<?> kind = event.kind();
+					
+					if (kind == OVERFLOW) {
+						// events have been lost; rescan the base directory, all other events are obsolete then
+						initialize();
+						break;
+					}
+					
+					WatchEvent<Path> evp = (WatchEvent<Path>) event;
+					
+					// Context for directory entry event is the file name of entry
+					Path name = evp.context(); // that subdir has triggered the change
+					Path fullpath = baseDir.toPath().resolve(name.toString());
+					
+					log.fine("%s: %s", evp.kind().name(), fullpath.toString());
+					
+					if (kind == ENTRY_CREATE) {
+						// new directory has been added
+						registerRepository(name.toFile().getName(), fullpath.toFile());
+						log.info("New repository %s has been registered from %s", name.toFile().getName(), fullpath.toFile().toString());
+					} else if (kind == ENTRY_DELETE) {
+						// repository has been removed
+						deregisterRepository(name.toFile().getName());
+						log.info("Repository %s has been deregistered", name.toFile().getName());
+					} else if (kind == ENTRY_MODIFY) {
+						// modification?
+						// TODO what does this mean? Change of attributes / change of date time stamp or what?
+						/* Analysis: change within the directory does not trigger a change of
+						 * the directory itself - at least on Windows 
+						 */
+						log.fine("Repository %s has been modified", name.toFile().getName());
+					}
+				}	
+				
+				if (!key.reset()) {
+					// the base directory has been deleted (or is not accessible anymore)
+					log.warn("Base directory %s cannot be watched anymore", baseDir.toString());
+					watchKey = null;
+					initialize();
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * registers watches on the locations where git stores the references of a
+	 * repository: <code>HEAD</code> and <code>packed-refs</code> in the git
+	 * directory and the tree of loose references in <code>refs/</code>. As
+	 * the repository might still be in the middle of being created, the
+	 * repository's root directory is watched as well, to notice a git
+	 * directory appearing later.
+	 */
+	private void watchReferences(String repoName, File repoDir) {
+		if (this.watcher == null) {
+			// without notifications, references must not be cached
+			return;
+		}
+
+		try {
+			this.registerRefWatch(repoName, repoDir.toPath(), false);
+			File gitDir = new File(repoDir, Constants.DOT_GIT);
+			if (gitDir.isDirectory()) {
+				this.registerRefWatch(repoName, gitDir.toPath(), false);
+			} else {
+				gitDir = repoDir; // bare repository
+			}
+
+			File refsDir = new File(gitDir, REFS_DIR);
+			if (refsDir.isDirectory()) {
+				this.registerRefsTree(repoName, refsDir.toPath());
+			}
+
+			this.watchedRepos.add(repoName);
+		} catch (IOException e) {
+			this.log.warn("Unable to watch the references of repository %s; they will not be cached: %s",
+					repoName, e.toString());
+			this.unwatchReferences(repoName);
+		}
+	}
+
+	private void registerRefsTree(String repoName, Path refsDir) throws IOException {
+		this.registerRefWatch(repoName, refsDir, true);
+
+		File[] subDirs = refsDir.toFile().listFiles();
+		if (subDirs == null) {
+			return;
+		}
+		for (File subDir : subDirs) {
+			if (subDir.isDirectory()) {
+				this.registerRefsTree(repoName, subDir.toPath());
+			}
+		}
+	}
+
+	private void registerRefWatch(String repoName, Path dir, boolean refsTree) throws IOException {
+		WatchKey key = dir.register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		this.refWatches.put(key, new RefWatch(repoName, refsTree));
+	}
+
+	private void unwatchReferences(String repoName) {
+		this.watchedRepos.remove(repoName);
+
+		Iterator<Map.Entry<WatchKey, RefWatch>> it = this.refWatches.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<WatchKey, RefWatch> entry = it.next();
+			if (entry.getValue().repoName.equals(repoName)) {
+				entry.getKey().cancel();
+				it.remove();
+			}
+		}
+	}
+
+	private void processRefWatchEvents(WatchKey key) {
+		RefWatch refWatch = this.refWatches.get(key);
+		if (refWatch == null) {
+			// has been unwatched in the meantime
+			key.pollEvents();
+			return;
+		}
+
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				// we have missed something
+				changed = true;
+				continue;
+			}
+
+			Path name = (Path) event.context();
+			Path child = ((Path) key.watchable()).resolve(name);
+			String fileName = name.toString();
+
+			if (refWatch.refsTree) {
+				// any change in there is a change of a (loose) reference
+				changed = true;
+			} else if (Constants.HEAD.equals(fileName) || Constants.PACKED_REFS.equals(fileName)
+					|| Constants.DOT_GIT.equals(fileName) || REFS_DIR.equals(fileName)) {
+				changed = true;
+			} else {
+				// e.g. a change in the working tree or of the index
+				continue;
+			}
+
+			if (event.kind() == ENTRY_CREATE && child.toFile().isDirectory()) {
+				try {
+					if (refWatch.refsTree || REFS_DIR.equals(fileName)) {
+						this.registerRefsTree(refWatch.repoName, child);
+					} else if (Constants.DOT_GIT.equals(fileName)) {
+						this.registerRefWatch(refWatch.repoName, child, false);
+						File refsDir = new File(child.toFile(), REFS_DIR);
+						if (refsDir.isDirectory()) {
+							this.registerRefsTree(refWatch.repoName, refsDir.toPath());
+						}
+					}
+				} catch (IOException e) {
+					this.log.warn("Unable to watch %s; references of repository %s will not be cached: %s",
+							child.toString(), refWatch.repoName, e.toString());
+					this.watchedRepos.remove(refWatch.repoName);
+				}
+			}
+		}
+
+		if (changed) {
+			this.refCache.invalidate(refWatch.repoName);
+		}
+
+		if (!key.reset()) {
+			// the directory has been deleted
+			this.refWatches.remove(key);
+		}
+	}
+
+	private class WarmUpThread extends Thread {
+		private final List<String> hotPaths;
+
+		public WarmUpThread(List<String> hotPaths) {
+			super("WarmUpThread BaseDirectory " + baseDir.toString());
+			this.hotPaths = hotPaths;
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				this.warmUp();
+			} finally {
+				// a failed warm-up must not keep the servlet out of service
+				if (!this.isInterrupted()) {
+					warmedUp = true;
+					log.info("Warm-up has been completed after %d ms", (System.nanoTime() - start) / 1000000);
+				}
+			}
+		}
+
+		private void warmUp() {
+			for (String name : new ArrayList<String>(repoPaths.keySet())) {
+				if (this.isInterrupted()) {
+					return;
+				}
+				try {
+					warmUpRepository(name);
+				} catch (IOException e) {
+					log.warn("Unable to warm up repository %s: %s", name, e.toString());
+				} catch (RuntimeException e) {
+					log.warn(String.format("Unable to warm up repository %s", name), e);
+				}
+			}
+
+			for (String hotPath : this.hotPaths) {
+				if (this.isInterrupted()) {
+					return;
+				}
+				try {
+					warmUpPath(hotPath);
+				} catch (IOException e) {
+					log.warn("Unable to warm up path %s: %s", hotPath, e.toString());
+				} catch (RuntimeException e) {
+					log.warn(String.format("Unable to warm up path %s", hotPath), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * installs the configuration of JGit's pack file cache (WindowCache)
+	 * and delta base cache. The configuration applies to the whole JVM, and
+	 * discards all pack data cached so far; to be called before the warm-up.
+	 * 
+	 * @param config
+	 *            the configuration
+	 * @throws IllegalArgumentException
+	 *             if JGit rejects the configuration (e.g. a window size
+	 *             which is not a power of 2)
+	 */
+	public void configureStorage(WindowCacheConfig config) {
+		config.install();
+		this.storageConfig = config;
+		this.log.info("Pack file cache: %d bytes in windows of %d bytes (%s), %d open files, "
+				+ "delta base cache: %d bytes, streaming files above %d bytes", config.getPackedGitLimit(),
+				config.getPackedGitWindowSize(), config.isPackedGitMMAP() ? "memory-mapped" : "read into heap",
+				config.getPackedGitOpenFiles(), config.getDeltaBaseCacheLimit(), config.getStreamFileThreshold());
+	}
+
+	/**
+	 * enables the store of large blobs on disk (see BlobStore); to be called
+	 * before the first request
+	 * 
+	 * @param directory
+	 *            the directory to store the blobs in
+	 * @param maxBytes
+	 *            the disk space which the stored blobs may occupy
+	 * @param minObjectSize
+	 *            the size of the smallest blob which is stored
+	 */
+	public void enableBlobStore(File directory, long maxBytes, long minObjectSize) {
+		this.blobStore = new BlobStore(directory, maxBytes, minObjectSize, this.log);
+		this.log.info("Large files are stored in %s (up to %d bytes)", directory, maxBytes);
+	}
+
+	/**
+	 * starts to warm up the RepoBase in the background: the very first access
+	 * to a repository takes several seconds, as JGit needs to load its classes
+	 * and read the system's configuration. Additionally, all repositories are
+	 * opened and their references and pack files are read. Until the warm-up
+	 * has finished, {@link #isWarmedUp()} reports <code>false</code>.
+	 * 
+	 * @param hotPaths
+	 *            paths in the form "repository/reference/file", which shall
+	 *            be resolved (and their content cached) upfront
+	 */
+	public void startWarmUp(List<String> hotPaths) {
+		this.warmedUp = false;
+		this.warmUpThread = new WarmUpThread(hotPaths);
+		this.warmUpThread.start();
+	}
+
+	/**
+	 * @return <code>false</code> while the warm-up is still in progress
+	 */
+	public boolean isWarmedUp() {
+		return this.warmedUp;
+	}
+
+	private void warmUpRepository(String name) throws IOException {
+		File gitPath = this.getRepository(name);
+		if (gitPath == null) {
+			// has been removed in the meantime
+			return;
+		}
+
+		Repository repo = this.openRepository(name, gitPath);
+		try {
+			// reads the packed-refs file and all loose references
+			repo.getRefDatabase().getRefs();
+
+			Ref head = repo.exactRef(Constants.HEAD);
+			if (head != null && head.getObjectId() != null) {
+				// reading a commit opens the pack files and their indexes
+				ObjectReader reader = repo.newObjectReader();
+				try {
+					this.treePathCache.findCommit(reader, head.getObjectId());
+				} finally {
+					reader.close();
+				}
+			}
+		} finally {
+			repo.close();
+		}
+		this.log.fine("Repository %s has been warmed up", name);
+	}
+
+	private void warmUpPath(String hotPath) throws IOException {
+		String[] parts = hotPath.replaceFirst("^/", "").split("/", 3);
+		if (parts.length < 3) {
+			this.log.warn("Ignoring invalid warm-up path %s", hotPath);
+			return;
+		}
+
+		File gitPath = this.getRepository(parts[0]);
+		if (gitPath == null) {
+			this.log.warn("Ignoring warm-up path %s of unknown repository", hotPath);
+			return;
+		}
+
+		Repository repo = this.openRepository(parts[0], gitPath);
+		try {
+			Ref ref = repo.findRef(parts[1]);
+			if (ref == null) {
+				this.log.warn("Ignoring warm-up path %s of unknown reference", hotPath);
+				return;
+			}
+
+			TreePathCache.Entry entry;
+			ObjectReader reader = repo.newObjectReader();
+			try {
+				entry = this.treePathCache.find(reader, ref.getObjectId(), parts[2]);
+			} finally {
+				reader.close();
+			}
+
+			if (entry != null && entry.getMode().getObjectType() == Constants.OBJ_BLOB) {
+				// the loader is not read; large blobs are only materialized
+				this.openBlob(repo, entry.getObjectId());
+			}
+		} finally {
+			repo.close();
+		}
+	}
+
+	/**
+	 * starts the background maintenance of the repositories (see
+	 * {@link RepositoryMaintenance})
+	 * 
+	 * @param intervalMillis
+	 *            the time between two checks of all repositories
+	 * @param looseObjectsThreshold
+	 *            the number of loose objects which triggers a garbage
+	 *            collection
+	 * @param packFilesThreshold
+	 *            the number of pack files which triggers a garbage collection
+	 */
+	public void startMaintenance(long intervalMillis, long looseObjectsThreshold, long packFilesThreshold) {
+		this.maintenance = new RepositoryMaintenance(this, this.log, intervalMillis, looseObjectsThreshold,
+				packFilesThreshold);
+		this.maintenance.start();
+		this.log.info("Repositories are checked for maintenance every %d minutes",
+				TimeUnit.MILLISECONDS.toMinutes(intervalMillis));
+	}
+
+	/**
+	 * @param admissionControl
+	 *            limits the requests served concurrently (per repository and
+	 *            in total); <code>null</code> to serve all requests
+	 *            immediately
+	 */
+	public void setAdmissionControl(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
+	/**
+	 * @return the limits of the requests served concurrently, or
+	 *         <code>null</code> if requests are not limited
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return this.admissionControl;
+	}
+
+	/**
+	 * called after the pack files of a repository have been rewritten; the
+	 * repository is reopened by the next request, such that it uses the new
+	 * pack files. Requests in progress keep their handle.
+	 * 
+	 * @param name
+	 *            the name of the repository
+	 */
+	void maintenanceCompleted(String name) {
+		this.repositoryPool.invalidate(name);
+	}
+
+	public void shutdown() {
+		if (this.warmUpThread != null) {
+			this.warmUpThread.interrupt();
+		}
+		if (this.maintenance != null) {
+			this.maintenance.interrupt();
+		}
+		if (this.blobStore != null) {
+			this.blobStore.shutdown();
+		}
+		if (this.watchThread != null) {
+			this.watchThread.interrupt();
+		}
+		if (this.watcher != null) {
+			try {
+				// also stops the thread of the file system which delivers the events
+				this.watcher.close();
+			} catch (IOException e) {
+				this.log.warn("Unable to close file change notification service", e);
+			}
+		}
+		this.repositoryPool.clear();
+	}
+
+	/**
+	 * (re-)scans the baseDir directory and updates the registry of
+	 * repositories accordingly. Repositories which are still there stay
+	 * registered all the time, such that concurrent requests are not
+	 * affected by the rescan.
+	 */
+	private void initialize() {
+		File[] subDirs = this.baseDir.listFiles();
+		if (subDirs == null) {
+			this.log.warn("Base directory %s cannot be read", this.baseDir.toString());
+			subDirs = new File[0];
+		}
+
+		Map<String, File> previous = this.repoPaths;
+		HashMap<String, File> current = new HashMap<String, File>();
+		for (File subDir : subDirs) {
+			current.put(subDir.getName(), subDir);
+		}
+		this.repoPaths = Collections.unmodifiableMap(current);
+
+		for (String name : previous.keySet()) {
+			if (!current.containsKey(name)) {
+				this.unwatchReferences(name);
+				this.repositoryPool.invalidate(name);
+				this.refCache.invalidate(name);
+				this.metrics.remove(name);
+				this.log.info("Repository %s has been deregistered", name);
+			}
+		}
+
+		for (Map.Entry<String, File> entry : current.entrySet()) {
+			String name = entry.getKey();
+			if (previous.containsKey(name)) {
+				// changes of its references may have been missed as well
+				this.unwatchReferences(name);
+				this.refCache.invalidate(name);
+			} else {
+				this.log.info("Repository %s has been initialized from %s", name, entry.getValue().toString());
+			}
+			this.watchReferences(name, entry.getValue());
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		super.finalize();
+		
+		// remove the registration for the baseDir
+		if (this.watchKey != null) {
+			this.watchKey.cancel();
+		}
+	}
+
+	public File getRepository(String name) {
+		return this.repoPaths.get(name);
+	}
+
+	/**
+	 * @return the names of the repositories which are currently registered
+	 */
+	public List<String> getRepositoryNames() {
+		return new ArrayList<String>(this.repoPaths.keySet());
+	}
+
+	/**
+	 * provides the opened git repository which is located at the given path.
+	 * The handle is shared with other requests; the caller must
+	 * {@link Repository#close()} it once it does not need it anymore.
+	 * 
+	 * @param name
+	 *            the name of the repository
+	 * @param gitPath
+	 *            the location of the repository, as provided by
+	 *            {@link #getRepository(String)}
+	 * @return the opened repository
+	 * @throws IOException
+	 *             if the repository cannot be opened
+	 */
+	public Repository openRepository(String name, File gitPath) throws IOException {
+		return this.repositoryPool.borrow(name, gitPath);
+	}
+
+	/**
+	 * resolves a reference name within a repository. References are only
+	 * cached as long as changes to them are notified by the file system;
+	 * thus, pushed commits become visible immediately.
+	 * 
+	 * @param name
+	 *            the name of the repository
+	 * @param repo
+	 *            the opened repository, as provided by
+	 *            {@link #openRepository(String, File)}
+	 * @param refName
+	 *            the (possibly abbreviated) name of the reference
+	 * @return the object id the reference points to, or <code>null</code> if
+	 *         there is no such reference
+	 * @throws IOException
+	 *             if the references cannot be read
+	 */
+	public ObjectId resolveReference(String name, Repository repo, String refName) throws IOException {
+		if (!this.watchedRepos.contains(name)) {
+			Ref ref = repo.findRef(refName);
+			return ref == null ? null : ref.getObjectId();
+		}
+		return this.refCache.resolve(name, repo, refName);
+	}
+
+	/**
+	 * @return the cache for resolving paths within commits, which is shared
+	 *         by all repositories
+	 */
+	public TreePathCache getTreePathCache() {
+		return this.treePathCache;
+	}
+
+	/**
+	 * @return the cache for the content of small files, which is shared by
+	 *         all repositories
+	 */
+	public BlobCache getBlobCache() {
+		return this.blobCache;
+	}
+
+	/**
+	 * @return the cache for compressed variants of files, which is shared by
+	 *         all repositories
+	 */
+	public CompressedBlobCache getCompressedBlobCache() {
+		return this.compressedBlobCache;
+	}
+
+	/**
+	 * opens a blob for sending its content: small blobs are served from
+	 * memory (see BlobCache), large ones from disk if the BlobStore is
+	 * enabled (in which case they are written to the store in the background
+	 * on first access, while that access is served from the repository)
+	 * 
+	 * @param repo
+	 *            the repository which contains the blob
+	 * @param blobId
+	 *            the id of the blob
+	 * @return the loader for the blob's content; a BlobStore.StoredLoader if
+	 *         the blob is served from disk
+	 * @throws IOException
+	 *             if the blob cannot be read from the repository
+	 */
+	public ObjectLoader openBlob(Repository repo, AnyObjectId blobId) throws IOException {
+		BlobStore store = this.blobStore;
+		if (store != null) {
+			ObjectLoader stored = store.open(blobId);
+			if (stored != null) {
+				return stored;
+			}
+		}
+
+		ObjectLoader loader = this.blobCache.open(repo, blobId);
+		if (store != null && store.isCandidate(loader.getSize())) {
+			// don't delay the first byte of this request until the whole blob is on disk
+			store.storeInBackground(repo, blobId);
+		}
+		return loader;
+	}
+
+	/**
+	 * @return the cache for archives of directories
+	 */
+	public ArchiveCache getArchiveCache() {
+		return this.archiveCache;
+	}
+
+	/**
+	 * @return the collected processing times of requests
+	 */
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * writes all metrics of the RepoBase in the text format of Prometheus
+	 * 
+	 * @param out
+	 *            the writer to write to
+	 */
+	public void writeMetrics(PrintWriter out) {
+		this.metrics.write(out);
+
+		Map<String, long[]> caches = new LinkedHashMap<String, long[]>();
+		caches.put("repository", new long[] { this.repositoryPool.getHitCount(), this.repositoryPool.getMissCount() });
+		caches.put("reference", new long[] { this.refCache.getHitCount(), this.refCache.getMissCount() });
+		caches.put("tree_path", new long[] { this.treePathCache.getHitCount(), this.treePathCache.getMissCount() });
+		caches.put("blob", new long[] { this.blobCache.getHitCount(), this.blobCache.getMissCount() });
+		caches.put("compressed_blob", new long[] { this.compressedBlobCache.getHitCount(),
+				this.compressedBlobCache.getMissCount() });
+		caches.put("archive", new long[] { this.archiveCache.getHitCount(), this.archiveCache.getMissCount() });
+		WindowCacheStats windowCache = WindowCacheStats.getStats();
+		caches.put("jgit_window", new long[] { windowCache.getHitCount(), windowCache.getMissCount() });
+		BlobStore store = this.blobStore;
+		if (store != null) {
+			caches.put("blob_store", new long[] { store.getHitCount(), store.getMissCount() });
+		}
+		Metrics.writeCaches(out, caches);
+
+		Map<String, Long> coalesced = new LinkedHashMap<String, Long>();
+		coalesced.put("reference", this.refCache.getCoalescedCount());
+		coalesced.put("tree_path", this.treePathCache.getCoalescedCount());
+		coalesced.put("blob", this.blobCache.getCoalescedCount());
+		if (store != null) {
+			coalesced.put("blob_store", store.getCoalescedCount());
+		}
+		Metrics.writeCoalesced(out, coalesced);
+
+		Metrics.writeValue(out, "gitservlet_repositories", "gauge", "Repositories registered in the RepoBase.",
+				this.repoPaths.size());
+		Metrics.writeValue(out, "gitservlet_open_repositories", "gauge", "Repositories currently kept open.",
+				this.repositoryPool.size());
+		Metrics.writeValue(out, "gitservlet_blob_cache_bytes", "gauge", "Bytes of file content cached in memory.",
+				this.blobCache.getSize());
+		Metrics.writeValue(out, "gitservlet_blob_cache_evictions_total", "counter",
+				"Files evicted from the content cache.", this.blobCache.getEvictionCount());
+		Metrics.writeValue(out, "gitservlet_compressed_blob_cache_bytes", "gauge",
+				"Bytes of compressed file content cached in memory.", this.compressedBlobCache.getSize());
+		if (store != null) {
+			Metrics.writeValue(out, "gitservlet_blob_store_bytes", "gauge", "Bytes of file content stored on disk.",
+					store.getSize());
+		}
+
+		RepositoryMaintenance maintenance = this.maintenance;
+		if (maintenance != null) {
+			Metrics.writeValue(out, "gitservlet_maintenance_collections_total", "counter",
+					"Garbage collections of repositories by the background maintenance.",
+					maintenance.getCollectionCount());
+			Metrics.writeValue(out, "gitservlet_maintenance_failures_total", "counter",
+					"Garbage collections of repositories which have failed.", maintenance.getFailureCount());
+			Metrics.writeValue(out, "gitservlet_maintenance_seconds_total", "counter",
+					"Time spent collecting garbage of repositories.", maintenance.getCollectionNanos() / 1e9);
+		}
+
+		AdmissionControl admission = this.admissionControl;
+		if (admission != null) {
+			admission.writeMetrics(out);
+		}
+
+		WindowCacheConfig config = this.storageConfig;
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_limit_bytes", "gauge",
+				"Configured size of JGit's pack file cache.", config.getPackedGitLimit());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_open_bytes", "gauge",
+				"Bytes of pack files held in JGit's pack file cache.", windowCache.getOpenByteCount());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_open_files", "gauge",
+				"Pack files currently opened by JGit.", windowCache.getOpenFileCount());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_open_files_limit", "gauge",
+				"Configured maximum of pack files opened by JGit.", config.getPackedGitOpenFiles());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_evictions_total", "counter",
+				"Windows evicted from JGit's pack file cache.", windowCache.getEvictionCount());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_load_failures_total", "counter",
+				"Windows which JGit failed to load from pack files.", windowCache.getLoadFailureCount());
+		Metrics.writeValue(out, "gitservlet_jgit_window_cache_load_seconds_total", "counter",
+				"Time spent loading windows from pack files.", windowCache.getTotalLoadTime() / 1e9);
+	}
+}
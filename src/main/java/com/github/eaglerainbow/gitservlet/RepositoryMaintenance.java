@@ -0,0 +1,260 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.pack.PackConfig;
+
+/**
+ * Keeps the repositories of a RepoBase in shape while they receive pushes.
+ * Pushes leave loose objects, small packs and loose references behind, which
+ * slow down opening repositories and looking up objects over time.
+ * <p>
+ * A single thread of low priority checks one repository after another, and
+ * runs JGit's garbage collection where the number of loose objects, pack
+ * files or loose references exceeds a threshold. The garbage collection
+ * repacks all objects into a single pack with reachability bitmaps, writes
+ * the commit-graph and packs the references. It is throttled to a fraction
+ * of a single CPU, such that it does not compete with requests for I/O. Once
+ * done, the RepoBase is told to reopen the repository, so that new requests
+ * use the new pack.
+ */
+public class RepositoryMaintenance extends Thread {
+	/**
+	 * a repository is not collected again within this time, even if the
+	 * thresholds are still exceeded (e.g. by recent unreachable objects,
+	 * which are kept until they expire)
+	 */
+	private static final long MIN_MILLIS_BETWEEN_COLLECTIONS = TimeUnit.HOURS.toMillis(6);
+
+	private static final int LOOSE_REFS_THRESHOLD = 1000;
+
+	/**
+	 * the garbage collection works for a slice of this length, and then
+	 * pauses such that it uses at most DUTY_CYCLE_PERCENT of the time
+	 */
+	private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final int DUTY_CYCLE_PERCENT = 25;
+
+	private final RepoBase repoBase;
+	private final Log log;
+	private final long intervalMillis;
+	private final long looseObjectsThreshold;
+	private final long packFilesThreshold;
+
+	/**
+	 * the point in time of the last collection per repository; only
+	 * accessed by this thread
+	 */
+	private final Map<String, Long> lastCollected = new HashMap<String, Long>();
+
+	private final AtomicLong collections = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong collectionNanos = new AtomicLong();
+
+	/**
+	 * @param repoBase
+	 *            the RepoBase whose repositories shall be maintained
+	 * @param log
+	 *            the log to report the collections to
+	 * @param intervalMillis
+	 *            the time between two checks of all repositories
+	 * @param looseObjectsThreshold
+	 *            the number of loose objects which triggers a collection
+	 * @param packFilesThreshold
+	 *            the number of pack files which triggers a collection
+	 */
+	public RepositoryMaintenance(RepoBase repoBase, Log log, long intervalMillis, long looseObjectsThreshold,
+			long packFilesThreshold) {
+		super("RepositoryMaintenance");
+		this.repoBase = repoBase;
+		this.log = log.deriveSpecificLog(RepositoryMaintenance.class);
+		this.intervalMillis = intervalMillis;
+		this.looseObjectsThreshold = looseObjectsThreshold;
+		this.packFilesThreshold = packFilesThreshold;
+		this.setDaemon(true);
+		this.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!this.isInterrupted()) {
+				Thread.sleep(this.intervalMillis);
+
+				List<String> names = this.repoBase.getRepositoryNames();
+				for (String name : names) {
+					if (this.isInterrupted()) {
+						return;
+					}
+					File path = this.repoBase.getRepository(name);
+					if (path != null) {
+						this.maintain(name, path);
+					}
+				}
+				this.lastCollected.keySet().retainAll(names);
+			}
+		} catch (InterruptedException e) {
+			// shutting down
+		}
+	}
+
+	private void maintain(String name, File path) throws InterruptedException {
+		Long last = this.lastCollected.get(name);
+		if (last != null && System.currentTimeMillis() - last < MIN_MILLIS_BETWEEN_COLLECTIONS) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			// a handle of our own, such that the configuration below does not
+			// affect the requests
+			Repository repo = RepositoryPool.open(path);
+			try {
+				if (!(repo instanceof FileRepository)) {
+					return;
+				}
+
+				// JGit's public GarbageCollectCommand neither exposes the
+				// statistics as numbers nor the pack configuration
+				GC gc = new GC((FileRepository) repo);
+				GC.RepoStatistics stats = gc.getStatistics();
+				if (stats.numberOfLooseObjects < this.looseObjectsThreshold
+						&& stats.numberOfPackFiles < this.packFilesThreshold
+						&& stats.numberOfLooseRefs < LOOSE_REFS_THRESHOLD) {
+					return;
+				}
+
+				this.log.info("Collecting garbage of repository %s: %s", name, stats.toString().trim());
+				this.lastCollected.put(name, System.currentTimeMillis());
+
+				// only in memory; the repository's own settings take precedence
+				StoredConfig config = repo.getConfig();
+				if (config.getString(ConfigConstants.CONFIG_CORE_SECTION, null, "commitGraph") == null) {
+					config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "commitGraph", true);
+				}
+				if (config.getString(ConfigConstants.CONFIG_GC_SECTION, null, "writeCommitGraph") == null) {
+					config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null, "writeCommitGraph", true);
+				}
+				PackConfig packConfig = new PackConfig(repo);
+				packConfig.setThreads(1);
+				packConfig.setBuildBitmaps(true);
+				gc.setPackConfig(packConfig);
+				gc.setProgressMonitor(new Throttle(this));
+
+				gc.gc().get();
+			} finally {
+				repo.close();
+			}
+		} catch (IOException | ParseException | ExecutionException | RuntimeException e) {
+			// a failure of one repository must not stop the maintenance of the others
+			if (this.isInterrupted()) {
+				// cancelled by the shutdown
+				return;
+			}
+			this.failures.incrementAndGet();
+			this.log.warn("Unable to collect garbage of repository " + name, e);
+			return;
+		}
+
+		long elapsed = System.nanoTime() - start;
+		this.collections.incrementAndGet();
+		this.collectionNanos.addAndGet(elapsed);
+		this.repoBase.maintenanceCompleted(name);
+		this.log.info("Garbage of repository %s has been collected after %d ms", name,
+				TimeUnit.NANOSECONDS.toMillis(elapsed));
+	}
+
+	public long getCollectionCount() {
+		return this.collections.get();
+	}
+
+	public long getFailureCount() {
+		return this.failures.get();
+	}
+
+	public long getCollectionNanos() {
+		return this.collectionNanos.get();
+	}
+
+	/**
+	 * pauses the garbage collection regularly, and cancels it on shutdown
+	 */
+	private static class Throttle implements ProgressMonitor {
+		private final Thread maintenance;
+		private long sliceStart = System.nanoTime();
+
+		public Throttle(Thread maintenance) {
+			this.maintenance = maintenance;
+		}
+
+		@Override
+		public void update(int completed) {
+			long worked = System.nanoTime() - this.sliceStart;
+			if (worked < SLICE_NANOS) {
+				return;
+			}
+
+			try {
+				TimeUnit.NANOSECONDS.sleep(worked * (100 - DUTY_CYCLE_PERCENT) / DUTY_CYCLE_PERCENT);
+			} catch (InterruptedException e) {
+				// noticed by isCancelled()
+				this.maintenance.interrupt();
+			}
+			this.sliceStart = System.nanoTime();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return this.maintenance.isInterrupted();
+		}
+
+		@Override
+		public void start(int totalTasks) {
+			// not relevant
+		}
+
+		@Override
+		public void beginTask(String title, int totalWork) {
+			this.update(0);
+		}
+
+		@Override
+		public void endTask() {
+			// not relevant
+		}
+
+		@Override
+		public void showDuration(boolean enabled) {
+			// not relevant
+		}
+	}
+}
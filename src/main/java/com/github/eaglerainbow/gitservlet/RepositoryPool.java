@@ -0,0 +1,216 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Bounded cache of open JGit repositories, keyed by the name of the
+ * repository within the RepoBase.
+ * <p>
+ * Handles are reference-counted with JGit's own use counter (see
+ * {@link Repository#incrementOpen()} and {@link Repository#close()}): the pool
+ * holds one reference on each cached handle and every borrower holds another
+ * one until it calls {@link Repository#close()}. Evicting a handle therefore
+ * only drops the pool's reference; the pack files are released once the last
+ * borrower has finished its transfer.
+ */
+public class RepositoryPool {
+	private static class Entry {
+		private final File path;
+		private final Repository repository;
+		private long lastUsed;
+
+		public Entry(File path, Repository repository) {
+			this.path = path;
+			this.repository = repository;
+		}
+	}
+
+	private final int maxOpen;
+	private final long maxIdleMillis;
+
+	/**
+	 * access-ordered, i.e. the eldest entry is the least recently used one;
+	 * guarded by <code>this</code>
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxOpen
+	 *            the maximal number of repositories which are kept open
+	 * @param maxIdleMillis
+	 *            the time after which a repository which has not been borrowed
+	 *            is closed
+	 */
+	public RepositoryPool(int maxOpen, long maxIdleMillis) {
+		this.maxOpen = maxOpen;
+		this.maxIdleMillis = maxIdleMillis;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * borrows the repository with the given name, opening it if it is not
+	 * cached yet. The caller must {@link Repository#close()} the repository
+	 * once it is done with it.
+	 *
+	 * @param name
+	 *            the name of the repository within the RepoBase
+	 * @param path
+	 *            the location of the repository on disk
+	 * @return the opened repository
+	 * @throws IOException
+	 *             if the repository cannot be opened
+	 */
+	public Repository borrow(String name, File path) throws IOException {
+		List<Repository> toClose = new ArrayList<Repository>();
+		long now = System.currentTimeMillis();
+
+		try {
+			synchronized (this) {
+				this.evictIdle(now, toClose);
+
+				Entry entry = this.entries.get(name);
+				if (entry != null && entry.path.equals(path)) {
+					entry.lastUsed = now;
+					entry.repository.incrementOpen();
+					this.hits.incrementAndGet();
+					return entry.repository;
+				}
+			}
+			this.misses.incrementAndGet();
+
+			// opening the repository reads its configuration; don't block
+			// the other borrowers while doing so
+			Repository opened = open(path);
+
+			synchronized (this) {
+				Entry entry = this.entries.get(name);
+				if (entry != null && entry.path.equals(path)) {
+					// another thread was faster than us
+					toClose.add(opened);
+				} else {
+					if (entry != null) {
+						// the repository has been replaced on disk
+						toClose.add(entry.repository);
+					}
+					entry = new Entry(path, opened);
+					this.entries.put(name, entry);
+					this.trim(toClose);
+				}
+
+				entry.lastUsed = now;
+				entry.repository.incrementOpen();
+				return entry.repository;
+			}
+		} finally {
+			// closing may involve I/O; do it outside of the lock
+			for (Repository repo : toClose) {
+				repo.close();
+			}
+		}
+	}
+
+	/**
+	 * removes the repository with the given name from the pool; borrowers
+	 * still using it are not affected.
+	 *
+	 * @param name
+	 *            the name of the repository within the RepoBase
+	 */
+	public void invalidate(String name) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.remove(name);
+		}
+
+		if (entry != null) {
+			entry.repository.close();
+		}
+	}
+
+	/**
+	 * removes all repositories from the pool
+	 */
+	public void clear() {
+		List<Entry> removed;
+		synchronized (this) {
+			removed = new ArrayList<Entry>(this.entries.values());
+			this.entries.clear();
+		}
+
+		for (Entry entry : removed) {
+			entry.repository.close();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of repositories which are currently kept open
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	private void evictIdle(long now, List<Repository> toClose) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (now - entry.lastUsed < this.maxIdleMillis) {
+				// access order: all further entries have been used more recently
+				break;
+			}
+			it.remove();
+			toClose.add(entry.repository);
+		}
+	}
+
+	private void trim(List<Repository> toClose) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.entries.size() > this.maxOpen && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			toClose.add(entry.repository);
+		}
+	}
+
+	static Repository open(File path) throws IOException {
+		// same lookup as Git.open(): accept both bare repositories and working trees
+		File gitDir = FileKey.lenient(path, FS.DETECTED).getFile();
+		return new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+	}
+}
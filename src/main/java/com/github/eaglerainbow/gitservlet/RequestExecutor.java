@@ -0,0 +1,110 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the processing of requests outside of the container's threads.
+ * <p>
+ * On Java 21 and newer, each request gets its own virtual thread, so that
+ * thousands of slow downloads do not need thousands of OS threads; the
+ * number of requests processed at the same time is bounded nevertheless,
+ * further requests wait (cheaply) for their turn. On older JVMs, a fixed
+ * pool of platform threads is used instead.
+ */
+public class RequestExecutor {
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final boolean virtual;
+
+	/**
+	 * @param maxConcurrentRequests
+	 *            the maximal number of requests which are processed at the
+	 *            same time
+	 * @param log
+	 *            the log to report the kind of threads to
+	 */
+	public RequestExecutor(int maxConcurrentRequests, Log log) {
+		this.permits = new Semaphore(maxConcurrentRequests);
+
+		ExecutorService virtualExecutor = null;
+		try {
+			// only available on Java 21 and newer, while we are built for Java 8
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			virtualExecutor = (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			log.info("Virtual threads are not available (%s); using a pool of %d threads instead", e,
+					maxConcurrentRequests);
+		}
+
+		this.virtual = virtualExecutor != null;
+		this.executor = this.virtual ? virtualExecutor : Executors.newFixedThreadPool(maxConcurrentRequests,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "gitservlet-request-" + this.count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @return <code>true</code> if requests are processed on virtual
+	 *         threads
+	 */
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	/**
+	 * processes a request as soon as the concurrency bound permits
+	 *
+	 * @param task
+	 *            the processing of the request
+	 */
+	public void execute(final Runnable task) {
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					RequestExecutor.this.permits.acquire();
+				} catch (InterruptedException e) {
+					// shutting down
+					Thread.currentThread().interrupt();
+					return;
+				}
+				try {
+					task.run();
+				} finally {
+					RequestExecutor.this.permits.release();
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+}
@@ -1,75 +1,449 @@
-package com.github.eaglerainbow.gitservlet;
-/*
- * Copyright 2015 Nico Schmoigl
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-import java.io.File;
-import java.io.IOException;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-/**
- * Servlet implementation class Servlet
- */
-public class Servlet extends HttpServlet {
-	private static final long serialVersionUID = 1L;
-    
-	private final RepoBase repoBase;
-	private final Log genericLog;
-
-	/**
-	 * @see HttpServlet#HttpServlet()
-	 */
-	public Servlet() {
-		super();
-
-		this.genericLog = new Log(this);
-		this.repoBase = new RepoBase(new File("E:\\repobase"));
-		// TODO remove hard-coded location of repobase here (=> command line
-		// parameter?)
-	}
-    
-	@Override
-	public void destroy() {
-		if (this.repoBase != null) {
-			this.repoBase.shutdown();
-			
-			try {
-				Thread.sleep(500); // allows the thread to really stop
-			} catch (InterruptedException e) {
-			} 
-		}
-	}
-
-	/**
-	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
-	 */
-	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// retrieve the URL which is requested
-		String path = request.getRequestURI().substring(request.getContextPath().length());
-		
-		ServletRequest sr = new ServletRequest(this.genericLog, path, request, response, this.repoBase);
-		try {
-			sr.process();
-		} catch (LocalInternalServerException lise) {
-			response.setStatus(500);
-			response.getWriter().println(lise.getMessage());
-		}
-	}
-
-}
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+
+/**
+ * Servlet implementation class Servlet
+ */
+public class Servlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * prefix of the paths which are used for querying the state of the
+	 * servlet itself (a repository called ".gitservlet" would be shadowed)
+	 */
+	private static final String STATUS_PREFIX = "/.gitservlet/";
+
+	private static final long DEFAULT_BLOB_STORE_BYTES = 10L * 1024 * 1024 * 1024;
+	private static final long DEFAULT_BLOB_STORE_MIN_OBJECT_SIZE = 1024 * 1024;
+	private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1000;
+	private static final int DEFAULT_MAX_QUEUED_REQUESTS = 100;
+	private static final int DEFAULT_MAX_QUEUED_REQUESTS_PER_REPOSITORY = 10;
+	private static final int DEFAULT_MAX_QUEUE_WAIT_MILLIS = 5000;
+
+	// the defaults of "git gc --auto"
+	private static final int DEFAULT_MAINTENANCE_LOOSE_OBJECTS = 6700;
+	private static final int DEFAULT_MAINTENANCE_PACK_FILES = 50;
+	private static final int DEFAULT_MAINTENANCE_INTERVAL_MINUTES = 10;
+    
+	/**
+	 * the system property which names the RepoBase directory, unless the init
+	 * parameter <code>repoBase</code> does
+	 */
+	private static final String REPO_BASE_PROPERTY = "gitservlet.repoBase";
+
+	private RepoBase repoBase;
+	private final Log genericLog;
+
+	/**
+	 * whether file content shall be sent with non-blocking I/O (init parameter
+	 * <code>asyncOutput</code>)
+	 */
+	private boolean asyncOutput;
+
+	/**
+	 * whether requests naming a branch or a tag are redirected to the URL
+	 * naming the commit (init parameter <code>redirectToCommit</code>)
+	 */
+	private boolean redirectToCommit;
+
+	/**
+	 * processes requests on virtual threads instead of the container's
+	 * threads (init parameter <code>virtualThreads</code>); <code>null</code>
+	 * if disabled
+	 */
+	private RequestExecutor requestExecutor;
+
+	/**
+	 * @see HttpServlet#HttpServlet()
+	 */
+	public Servlet() {
+		super();
+
+		this.genericLog = new Log(this);
+	}
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+
+		String logLevel = this.getInitParameter("logLevel");
+		if (logLevel != null && !logLevel.trim().isEmpty()) {
+			try {
+				this.genericLog.setLevel(Level.parse(logLevel.trim().toUpperCase(Locale.ROOT)));
+			} catch (IllegalArgumentException iae) {
+				throw new ServletException("Invalid value for init parameter logLevel", iae);
+			}
+		}
+		if (Boolean.parseBoolean(this.getInitParameter("asyncLog"))) {
+			this.genericLog.startAsyncOutput();
+		}
+
+		this.repoBase = new RepoBase(this.getRepoBaseDirectory(), this.genericLog);
+
+		this.asyncOutput = Boolean.parseBoolean(this.getInitParameter("asyncOutput"));
+		this.redirectToCommit = Boolean.parseBoolean(this.getInitParameter("redirectToCommit"));
+
+		if (Boolean.parseBoolean(this.getInitParameter("virtualThreads"))) {
+			int maxConcurrentRequests = this.getIntParameter("maxConcurrentRequests", DEFAULT_MAX_CONCURRENT_REQUESTS);
+			if (maxConcurrentRequests < 1) {
+				throw new ServletException("Invalid value for init parameter maxConcurrentRequests");
+			}
+			this.requestExecutor = new RequestExecutor(maxConcurrentRequests, this.genericLog);
+			this.genericLog.info("Processing up to %d concurrent requests on %s threads", maxConcurrentRequests,
+					this.requestExecutor.isVirtual() ? "virtual" : "pooled");
+		}
+
+		this.configureStorage();
+		this.configureAdmissionControl();
+
+		String blobStoreDirectory = this.getInitParameter("blobStoreDirectory");
+		if (blobStoreDirectory != null && !blobStoreDirectory.trim().isEmpty()) {
+			this.repoBase.enableBlobStore(new File(blobStoreDirectory.trim()),
+					this.getSizeParameter("blobStoreMaxBytes", DEFAULT_BLOB_STORE_BYTES),
+					this.getSizeParameter("blobStoreMinObjectSize", DEFAULT_BLOB_STORE_MIN_OBJECT_SIZE));
+		}
+
+		if (Boolean.parseBoolean(this.getInitParameter("maintenance"))) {
+			int maintenanceIntervalMinutes = this.getIntParameter("maintenanceIntervalMinutes",
+					DEFAULT_MAINTENANCE_INTERVAL_MINUTES);
+			if (maintenanceIntervalMinutes < 1) {
+				throw new ServletException("Invalid value for init parameter maintenanceIntervalMinutes");
+			}
+			this.repoBase.startMaintenance(TimeUnit.MINUTES.toMillis(maintenanceIntervalMinutes),
+					this.getIntParameter("maintenanceLooseObjects", DEFAULT_MAINTENANCE_LOOSE_OBJECTS),
+					this.getIntParameter("maintenancePackFiles", DEFAULT_MAINTENANCE_PACK_FILES));
+		}
+
+		if (!"false".equals(this.getInitParameter("warmUp"))) {
+			List<String> hotPaths = new ArrayList<String>();
+			String warmUpPaths = this.getInitParameter("warmUpPaths");
+			if (warmUpPaths != null) {
+				for (String hotPath : warmUpPaths.split("[\\s,]+")) {
+					if (!hotPath.isEmpty()) {
+						hotPaths.add(hotPath);
+					}
+				}
+			}
+			this.repoBase.startWarmUp(hotPaths);
+		}
+	}
+
+	/**
+	 * @return the directory containing the repositories, as given by the init
+	 *         parameter <code>repoBase</code> or the system property
+	 *         <code>gitservlet.repoBase</code>
+	 * @throws ServletException
+	 *             if neither is set, or if it is not a directory
+	 */
+	private File getRepoBaseDirectory() throws ServletException {
+		String value = this.getInitParameter("repoBase");
+		if (value == null || value.trim().isEmpty()) {
+			value = System.getProperty(REPO_BASE_PROPERTY);
+		}
+		if (value == null || value.trim().isEmpty()) {
+			throw new ServletException(String.format(
+					"No RepoBase configured; set the init parameter repoBase or the system property %s",
+					REPO_BASE_PROPERTY));
+		}
+
+		File baseDir = new File(value.trim());
+		if (!baseDir.isDirectory()) {
+			throw new ServletException(String.format("RepoBase %s is not a directory", baseDir));
+		}
+		return baseDir;
+	}
+
+	/**
+	 * configures JGit's caches for pack files from the init parameters; the
+	 * defaults of JGit apply to all parameters which are not set
+	 * 
+	 * @throws ServletException
+	 *             if a parameter is invalid
+	 */
+	private void configureStorage() throws ServletException {
+		WindowCacheConfig config = new WindowCacheConfig();
+		config.setPackedGitLimit(this.getSizeParameter("packedGitLimit", config.getPackedGitLimit()));
+		config.setPackedGitWindowSize(
+				this.getIntSizeParameter("packedGitWindowSize", config.getPackedGitWindowSize()));
+		config.setPackedGitOpenFiles(this.getIntParameter("packedGitOpenFiles", config.getPackedGitOpenFiles()));
+		config.setDeltaBaseCacheLimit(
+				this.getIntSizeParameter("deltaBaseCacheLimit", config.getDeltaBaseCacheLimit()));
+		config.setStreamFileThreshold(
+				this.getIntSizeParameter("streamFileThreshold", config.getStreamFileThreshold()));
+		String mmap = this.getInitParameter("packedGitMMAP");
+		if (mmap != null && !mmap.trim().isEmpty()) {
+			config.setPackedGitMMAP(Boolean.parseBoolean(mmap.trim()));
+		}
+
+		try {
+			this.repoBase.configureStorage(config);
+		} catch (IllegalArgumentException iae) {
+			throw new ServletException("Invalid configuration of the pack file cache: " + iae.getMessage(), iae);
+		}
+	}
+
+	/**
+	 * limits the requests served concurrently according to the init
+	 * parameters; all requests are served immediately if no limit is set
+	 * 
+	 * @throws ServletException
+	 *             if a parameter is invalid
+	 */
+	private void configureAdmissionControl() throws ServletException {
+		int maxActive = this.getIntParameter("maxActiveRequests", 0);
+		int maxActivePerRepository = this.getIntParameter("maxActiveRequestsPerRepository", 0);
+		long bytesPerSecond = this.getSizeParameter("bytesPerSecond", 0);
+		long bytesPerSecondPerRepository = this.getSizeParameter("bytesPerSecondPerRepository", 0);
+		if (maxActive <= 0 && maxActivePerRepository <= 0 && bytesPerSecond <= 0 && bytesPerSecondPerRepository <= 0) {
+			return;
+		}
+
+		int maxQueued = this.getIntParameter("maxQueuedRequests", DEFAULT_MAX_QUEUED_REQUESTS);
+		int maxQueuedPerRepository = this.getIntParameter("maxQueuedRequestsPerRepository",
+				DEFAULT_MAX_QUEUED_REQUESTS_PER_REPOSITORY);
+		int maxWaitMillis = this.getIntParameter("maxQueueWaitMillis", DEFAULT_MAX_QUEUE_WAIT_MILLIS);
+		if (maxQueued < 0 || maxQueuedPerRepository < 0 || maxWaitMillis < 0) {
+			throw new ServletException(
+					"Invalid value for init parameter maxQueuedRequests, maxQueuedRequestsPerRepository or maxQueueWaitMillis");
+		}
+
+		this.repoBase.setAdmissionControl(new AdmissionControl(maxActive, maxActivePerRepository, maxQueued,
+				maxQueuedPerRepository, maxWaitMillis, bytesPerSecond, bytesPerSecondPerRepository));
+		this.genericLog.info(
+				"Requests are limited to %d active (%d per repository), %d bytes/s (%d per repository); 0 is unlimited",
+				maxActive, maxActivePerRepository, bytesPerSecond, bytesPerSecondPerRepository);
+	}
+
+	/**
+	 * reads an init parameter denoting a number
+	 * 
+	 * @param name
+	 *            the name of the parameter
+	 * @param defaultValue
+	 *            the value to use if the parameter is not set
+	 * @return the number
+	 * @throws ServletException
+	 *             if the value of the parameter is invalid
+	 */
+	private int getIntParameter(String name, int defaultValue) throws ServletException {
+		String value = this.getInitParameter(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new ServletException(String.format("Invalid value for init parameter %s", name), nfe);
+		}
+	}
+
+	/**
+	 * like {@link #getSizeParameter(String, long)}, for sizes which JGit
+	 * expects as int
+	 */
+	private int getIntSizeParameter(String name, int defaultValue) throws ServletException {
+		long value = this.getSizeParameter(name, defaultValue);
+		if (value > Integer.MAX_VALUE) {
+			throw new ServletException(String.format("Value of init parameter %s is too large", name));
+		}
+		return (int) value;
+	}
+
+	/**
+	 * reads an init parameter denoting a number of bytes, like "512k", "64m"
+	 * or "2g"
+	 * 
+	 * @param name
+	 *            the name of the parameter
+	 * @param defaultValue
+	 *            the value to use if the parameter is not set
+	 * @return the number of bytes
+	 * @throws ServletException
+	 *             if the value of the parameter is invalid
+	 */
+	private long getSizeParameter(String name, long defaultValue) throws ServletException {
+		String value = this.getInitParameter(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		value = value.trim().toLowerCase(Locale.ROOT);
+		long unit = 1;
+		switch (value.charAt(value.length() - 1)) {
+		case 'k':
+			unit = 1024;
+			break;
+		case 'm':
+			unit = 1024 * 1024;
+			break;
+		case 'g':
+			unit = 1024 * 1024 * 1024;
+			break;
+		}
+		if (unit != 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+
+		try {
+			return Long.parseLong(value.trim()) * unit;
+		} catch (NumberFormatException nfe) {
+			throw new ServletException(String.format("Invalid value for init parameter %s", name), nfe);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (this.requestExecutor != null) {
+			this.requestExecutor.shutdown();
+		}
+		if (this.repoBase != null) {
+			this.repoBase.shutdown();
+			
+			try {
+				Thread.sleep(500); // allows the thread to really stop
+			} catch (InterruptedException e) {
+			} 
+		}
+		this.genericLog.shutdown();
+	}
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		// retrieve the URL which is requested
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		
+		if (path.startsWith(STATUS_PREFIX)) {
+			this.sendStatus(path.substring(STATUS_PREFIX.length()), response);
+			return;
+		}
+
+		if (this.requestExecutor != null && request.isAsyncSupported()) {
+			// release the container thread; the response is completed by the executor
+			final AsyncContext asyncContext = request.startAsync();
+			asyncContext.setTimeout(0);
+			final String dispatchedPath = path;
+			this.requestExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Servlet.this.processDispatched(dispatchedPath, asyncContext);
+				}
+			});
+			return;
+		}
+
+		this.process(path, request, response);
+	}
+
+	/**
+	 * @return <code>true</code> if the response is still being sent
+	 *         asynchronously
+	 */
+	private boolean process(String path, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		ServletRequest sr = new ServletRequest(this.genericLog, path, request, response, this.repoBase,
+				this.asyncOutput, this.redirectToCommit);
+		try {
+			sr.process();
+		} catch (LocalServiceUnavailableException lsue) {
+			response.setHeader("Cache-Control", "no-store");
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setIntHeader("Retry-After", lsue.getRetryAfterSeconds());
+			response.getWriter().println(lsue.getMessage());
+		} catch (LocalInternalServerException lise) {
+			// a response to a commit-pinned URL may have been marked as immutable already
+			response.setHeader("Cache-Control", "no-store");
+			response.setStatus(500);
+			response.getWriter().println(lise.getMessage());
+		}
+		return sr.isTransferPending();
+	}
+
+	/**
+	 * processes a request on a thread of the {@link RequestExecutor}
+	 */
+	private void processDispatched(String path, AsyncContext asyncContext) {
+		HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+		boolean pending = false;
+		try {
+			pending = this.process(path, (HttpServletRequest) asyncContext.getRequest(), response);
+		} catch (IOException e) {
+			this.genericLog.info("Request has been aborted", e);
+		} catch (RuntimeException e) {
+			this.genericLog.warn("Unable to process request", e);
+			if (!response.isCommitted()) {
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		} finally {
+			if (!pending) {
+				asyncContext.complete();
+			}
+		}
+	}
+
+	/**
+	 * POST requests fetch several files at once, see
+	 * ServletRequest.sendBatch
+	 * 
+	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+			IOException {
+		this.doGet(request, response);
+	}
+
+	private void sendStatus(String name, HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain");
+
+		if ("ready".equals(name)) {
+			// used by load balancers: don't route traffic here before the warm-up is done
+			if (this.repoBase.isWarmedUp()) {
+				response.getWriter().println("ready");
+			} else {
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.getWriter().println("warming up");
+			}
+			return;
+		}
+
+		if ("metrics".equals(name)) {
+			response.setContentType("text/plain; version=0.0.4");
+			this.repoBase.writeMetrics(response.getWriter());
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+	}
+}
@@ -1,266 +1,1236 @@
-package com.github.eaglerainbow.gitservlet;
-
-/*
- * Copyright 2015 Nico Schmoigl
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-import java.io.File;
-import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.servlet.ServletOutputStream;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.lib.Ref;
-import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevTree;
-import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
-
-// TODO How to do Unit testing?
-public class ServletRequest {
-	private final String path;
-	private final HttpServletRequest request;
-	private final HttpServletResponse response;
-	private final RepoBase repoBase;
-	private final Log log;
-
-	// TODO: This approach does not support namespaced tags and/or branches =>
-	// might be a requirement
-	private static final Pattern LOCATION_FROM_URL = Pattern.compile("^/([^/]*)/([^/]*)/(.*)");
-	private boolean isDebug;
-
-	private class Location {
-		/**
-		 * internal name of the repository
-		 */
-		public String repo;
-
-		/**
-		 * the name of the reference within the git repository (i.e. "master" or
-		 * "v1.0")
-		 */
-		public String ref;
-
-		/**
-		 * the path and the filename itself within the commit referenced by the
-		 * reference in the given repository ("the file you want to have")
-		 */
-		public String file;
-	}
-
-	public ServletRequest(Log genericLog, String path, HttpServletRequest request, HttpServletResponse response,
-			RepoBase repoBase) {
-		this.log = genericLog.deriveSpecificLog(this.getClass());
-		this.path = path;
-		this.request = request;
-		this.response = response;
-		this.repoBase = repoBase;
-
-		this.isDebug = "true".equals(this.request.getParameter("gitservlet-debug"));
-		// TODO: Bad approach: needs to be sured by some authorization schema;
-		// with the current method, every productive user could gain internal
-		// server information
-
-		if (this.isDebug) {
-			this.log.fine("Debugging has been enabled");
-		}
-	}
-
-	/**
-	 * Parses the given URLs and retrieves the corresponding location
-	 * information of the file
-	 * 
-	 * @param urlpath
-	 *            the URL which shall be checked
-	 * @return the location information, or <code>null</code> if it cannot be
-	 *         determined
-	 */
-	private Location determineLocation(String urlpath) {
-		Location loc = new Location();
-
-		Matcher m = LOCATION_FROM_URL.matcher(urlpath);
-		if (!m.matches()) {
-			return null;
-		}
-
-		loc.repo = m.group(1);
-		loc.ref = m.group(2);
-		loc.file = m.group(3);
-
-		return loc;
-	}
-
-	/**
-	 * adds a Header information to the HTTP request, in case that debugging is
-	 * switched on
-	 * 
-	 * @param name
-	 *            the name of the header parameter which shall be created
-	 *            ("X-debug-" is prefixed automatically by this routine)
-	 * @param value
-	 *            the value of the parameter which shall be sent
-	 */
-	private void addDebugHeader(String name, String value) {
-		if (!this.isDebug)
-			// if debugging is not switched on, ignore
-			return;
-
-		this.response.setHeader("X-debug-" + name, value);
-	}
-
-	public void process() throws IOException, LocalInternalServerException {
-		this.log.fine(String.format("Processing path request for %s", this.path));
-
-		long profiler_start = System.nanoTime();
-
-		Location loc = this.determineLocation(this.path);
-		if (loc == null) {
-			throw new LocalInternalServerException("Invalid Path specified");
-		}
-		long profiler_determineLocation = System.nanoTime();
-
-		this.addDebugHeader("repo", loc.repo);
-		this.addDebugHeader("ref", loc.ref);
-		this.addDebugHeader("path", loc.file);
-		this.log.fine(
-				String.format("Request: Repository: %s, Reference: %s, Filepath: %s", loc.repo, loc.ref, loc.file));
-
-		// determine the path where the git repository is stored
-		File gitPath = this.repoBase.getRepository(loc.repo);
-		if (gitPath == null) {
-			throw new LocalInternalServerException("Unknown repository specified");
-		}
-		this.log.fine(String.format("Repository is located at %s", gitPath.toString()));
-
-		long profiler_determineRepo = System.nanoTime();
-
-		// load the git repository with JGit
-		Git git = Git.open(gitPath);
-		Repository repo = git.getRepository();
-		// TODO The very first call to this method takes ages (what's the
-		// library doing there?
-		// and how can we "prepone" this activity such that reply times are
-		// better right from the beginning?)
-
-		// TODO can we cache the access to the repository, such that we only
-		// need to open it once?
-		// How about concurrency and locking? Check the JGit API
-
-		long profiler_repoLoaded = System.nanoTime();
-
-		// resolve the given reference within this git repository
-		Ref ref = repo.getRef(loc.ref);
-		if (ref == null) {
-			throw new LocalInternalServerException("Specified reference could not be found / invalid reference");
-		}
-
-		// determine the Commit ID, which is behind that reference
-		ObjectId commitoid = ref.getObjectId();
-		String commitid = commitoid.getName();
-		this.log.fine(String.format("Commit ID behind ref: %s", commitid));
-
-		long profiler_commitResolved = System.nanoTime();
-
-		this.addDebugHeader("commitid", commitid);
-
-		ObjectId fileoid = this.getFileObjectIdInCommit(repo, commitoid, loc.file);
-		this.log.fine(String.format("File object ID: %s", fileoid.getName()));
-		this.addDebugHeader("objectid", fileoid.getName());
-
-		long profiler_fileResolved = System.nanoTime();
-
-		/*
-		 * Note that we can only send a debug header until we did not send the
-		 * HTTP body (in our case, this is the file itself) yet.
-		 */
-		if (this.isDebug) {
-			long delta_determineLocation = profiler_determineLocation - profiler_start;
-			long delta_determineRepo = profiler_determineRepo - profiler_determineLocation;
-			long delta_repoLoaded = profiler_repoLoaded - profiler_determineRepo;
-			long delta_commitResolved = profiler_commitResolved - profiler_repoLoaded;
-			long delta_fileResolved = profiler_fileResolved - profiler_commitResolved;
-
-			this.addDebugHeader("profiler", String.format("%d %d %d %d %d", delta_determineLocation,
-					delta_determineRepo, delta_repoLoaded, delta_commitResolved, delta_fileResolved));
-		}
-
-		this.sendFile(repo, fileoid);
-
-	}
-
-	private void sendFile(Repository repo, ObjectId fileoid) throws IOException {
-		// retrieve the Object from the Git repository
-		ObjectLoader loader = repo.open(fileoid);
-
-		// determine the length of the object which is requested
-		long size = loader.getSize();
-		this.log.fine(String.format("File size to transfer: %d", size));
-		this.response.setContentLengthLong(size);
-		ServletOutputStream sos = this.response.getOutputStream();
-
-		// copy the bytes from the git repository to the output stream of this
-		// servlet
-		loader.copyTo(sos);
-
-		this.log.fine("Transfer is completed");
-	}
-
-	private ObjectId getFileObjectIdInCommit(Repository repo, ObjectId commitoid, String filename)
-			throws LocalInternalServerException, IOException {
-		/*
-		 * TODO All this tree walker things may become quite expensive Clients
-		 * tend to request multiple files within the same tree. A better
-		 * alternative would be to only do the tree walking once, reading all
-		 * files into a Map<ConcatOfCommitIdAndPath, ObjectId> such that with
-		 * the second request, we can directly get the ObjectId of the file
-		 * without a need for treewalking.
-		 */
-		this.log.fine(String.format("searching for file named %s in commit %s", filename, commitoid.getName()));
-		// Prepare to search for the files within this commit
-		TreeWalk treeWalk = new TreeWalk(repo);
-		RevWalk rWalk = null;
-		try {
-			rWalk = new RevWalk(repo);
-			// determine the tree out of the commit which we just retrieved out
-			// of the reference
-			RevTree tree = rWalk.parseTree(commitoid);
-			treeWalk.addTree(tree);
-
-			// limit the search to only that single file, which the URL
-			// requests.
-			treeWalk.setFilter(PathFilter.create(filename));
-			// we know that there can only be one single file (if at all);
-			// that's why we don't need a loop here
-			if (!treeWalk.next()) {
-				this.log.info("File could not be found in the commit");
-				throw new LocalInternalServerException("File could not be found for this reference");
-			}
-
-		} finally {
-			rWalk.close();
-			treeWalk.close();
-		}
-		ObjectId foid = treeWalk.getObjectId(0);
-		this.log.fine(String.format("File has Git Object Id: %s", foid.getName()));
-		return foid;
-	}
-}
+package com.github.eaglerainbow.gitservlet;
+
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.IO;
+
+// TODO How to do Unit testing?
+public class ServletRequest {
+	private final String path;
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
+	private final RepoBase repoBase;
+	private final Log log;
+	private boolean asyncOutput;
+	private boolean transferPending;
+
+	/**
+	 * whether requests naming a branch or a tag are redirected to the URL
+	 * naming the commit
+	 */
+	private final boolean redirectToCommit;
+
+	/**
+	 * the admission of the request, if the RepoBase limits requests
+	 */
+	private AdmissionControl.Permit permit;
+
+	/**
+	 * the metrics of the requested repository; known once the repository has
+	 * been determined
+	 */
+	private Metrics.RepositoryMetrics metrics;
+
+	/**
+	 * the point in time when the transfer of the file has started
+	 */
+	private long transferStart;
+
+	/*
+	 * request attributes of Tomcat's sendfile support: the servlet announces
+	 * the file, and the container sends it after the servlet has returned
+	 */
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * the caching of responses to URLs naming a commit, which never change:
+	 * one year, the longest time recommended by RFC 7234, and no
+	 * revalidation at all
+	 */
+	private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	/**
+	 * the modification time of all files in archives of directories
+	 * (1980-01-01, the earliest time which can be stored in zip archives).
+	 * As it does not depend on the commit, the archives of the same tree are
+	 * identical, which allows caching them by tree id.
+	 */
+	private static final long ARCHIVE_TIME = 315532800000L;
+
+	/**
+	 * the maximal number of files which can be requested with a single batch
+	 * request
+	 */
+	private static final int MAX_BATCH_FILES = 100000;
+
+	// TODO: This approach does not support namespaced tags and/or branches =>
+	// might be a requirement
+	private static final Pattern LOCATION_FROM_URL = Pattern.compile("^/([^/]*)/([^/]*)/(.*)");
+	private boolean isDebug;
+
+	static class Location {
+		/**
+		 * internal name of the repository
+		 */
+		public String repo;
+
+		/**
+		 * the name of the reference within the git repository (i.e. "master" or
+		 * "v1.0"), or the full id of a commit
+		 */
+		public String ref;
+
+		/**
+		 * the path and the filename itself within the commit referenced by the
+		 * reference in the given repository ("the file you want to have")
+		 */
+		public String file;
+	}
+
+	/**
+	 * a file selected by a batch request
+	 */
+	private static class BatchFile {
+		private final String name;
+		private final ObjectId id;
+		private final FileMode mode;
+
+		public BatchFile(String name, ObjectId id, FileMode mode) {
+			this.name = name;
+			this.id = id;
+			this.mode = mode;
+		}
+	}
+
+	public ServletRequest(Log genericLog, String path, HttpServletRequest request, HttpServletResponse response,
+			RepoBase repoBase, boolean asyncOutput) {
+		this(genericLog, path, request, response, repoBase, asyncOutput, false);
+	}
+
+	/**
+	 * @param redirectToCommit
+	 *            <code>true</code> if requests naming a branch or a tag shall
+	 *            be redirected to the URL naming the commit, whose responses
+	 *            can be cached forever
+	 */
+	public ServletRequest(Log genericLog, String path, HttpServletRequest request, HttpServletResponse response,
+			RepoBase repoBase, boolean asyncOutput, boolean redirectToCommit) {
+		this.log = genericLog.deriveSpecificLog(this.getClass());
+		this.path = path;
+		this.request = request;
+		this.response = response;
+		this.repoBase = repoBase;
+		// non-blocking I/O is only possible if all filters in the chain support it
+		this.asyncOutput = asyncOutput && request.isAsyncSupported();
+		this.redirectToCommit = redirectToCommit;
+
+		this.isDebug = "true".equals(this.request.getParameter("gitservlet-debug"));
+		// TODO: Bad approach: needs to be sured by some authorization schema;
+		// with the current method, every productive user could gain internal
+		// server information
+
+		if (this.isDebug) {
+			this.log.fine("Debugging has been enabled");
+		}
+	}
+
+	/**
+	 * Parses the given URLs and retrieves the corresponding location
+	 * information of the file
+	 * 
+	 * @param urlpath
+	 *            the URL which shall be checked
+	 * @return the location information, or <code>null</code> if it cannot be
+	 *         determined
+	 */
+	static Location determineLocation(String urlpath) {
+		Location loc = new Location();
+
+		Matcher m = LOCATION_FROM_URL.matcher(urlpath);
+		if (!m.matches()) {
+			return null;
+		}
+
+		loc.repo = m.group(1);
+		loc.ref = m.group(2);
+		loc.file = m.group(3);
+
+		return loc;
+	}
+
+	/**
+	 * adds a Header information to the HTTP request, in case that debugging is
+	 * switched on
+	 * 
+	 * @param name
+	 *            the name of the header parameter which shall be created
+	 *            ("X-debug-" is prefixed automatically by this routine)
+	 * @param value
+	 *            the value of the parameter which shall be sent
+	 */
+	private void addDebugHeader(String name, String value) {
+		if (!this.isDebug)
+			// if debugging is not switched on, ignore
+			return;
+
+		this.response.setHeader("X-debug-" + name, value);
+	}
+
+	public void process() throws IOException, LocalInternalServerException {
+		try {
+			this.processAdmitted();
+		} finally {
+			if (this.permit != null && !this.transferPending) {
+				this.permit.release();
+			}
+		}
+	}
+
+	private void processAdmitted() throws IOException, LocalInternalServerException {
+		this.log.fine("Processing path request for %s", this.path);
+
+		long profiler_start = System.nanoTime();
+
+		Location loc = determineLocation(this.path);
+		if (loc == null) {
+			throw new LocalInternalServerException("Invalid Path specified");
+		}
+		long profiler_determineLocation = System.nanoTime();
+
+		this.addDebugHeader("repo", loc.repo);
+		this.addDebugHeader("ref", loc.ref);
+		this.addDebugHeader("path", loc.file);
+		this.log.fine("Request: Repository: %s, Reference: %s, Filepath: %s", loc.repo, loc.ref, loc.file);
+
+		// determine the path where the git repository is stored
+		File gitPath = this.repoBase.getRepository(loc.repo);
+		if (gitPath == null) {
+			throw new LocalInternalServerException("Unknown repository specified");
+		}
+		this.log.fine("Repository is located at %s", gitPath);
+
+		long profiler_determineRepo = System.nanoTime();
+
+		this.metrics = this.repoBase.getMetrics().forRepository(loc.repo);
+		this.metrics.record(Metrics.Stage.DETERMINE_LOCATION, profiler_determineLocation - profiler_start);
+		this.metrics.record(Metrics.Stage.DETERMINE_REPOSITORY, profiler_determineRepo - profiler_determineLocation);
+
+		AdmissionControl admissionControl = this.repoBase.getAdmissionControl();
+		if (admissionControl != null) {
+			try {
+				// may wait, or reject the request with status 503
+				this.permit = admissionControl.admit(loc.repo);
+			} finally {
+				// the wait of rejected requests is recorded as well
+				this.metrics.record(Metrics.Stage.ADMISSION, System.nanoTime() - profiler_determineRepo);
+			}
+			if (this.permit.isThrottled()) {
+				// non-blocking output would bypass the throttled stream
+				this.asyncOutput = false;
+			}
+		}
+
+		long profiler_admitted = System.nanoTime();
+
+		// load the git repository with JGit
+		Repository repo = this.repoBase.openRepository(loc.repo, gitPath);
+		// Note that the very first call to this method takes ages, unless the
+		// RepoBase has been warmed up (see RepoBase.startWarmUp)
+		try {
+			long profiler_repoLoaded = System.nanoTime();
+			this.metrics.record(Metrics.Stage.OPEN_REPOSITORY, profiler_repoLoaded - profiler_admitted);
+
+			/*
+			 * A full commit id needs no lookup, and pins the response: the
+			 * content behind the URL can never change. Abbreviated ids are not
+			 * accepted, as they may become ambiguous.
+			 */
+			boolean pinned = ObjectId.isId(loc.ref);
+			ObjectId commitoid;
+			if (pinned) {
+				commitoid = ObjectId.fromString(loc.ref);
+				// the caches are shared by all repositories and keyed by
+				// object ids only; they must not serve another one's commit
+				if (!repo.getObjectDatabase().has(commitoid)) {
+					throw new LocalInternalServerException("Specified commit could not be found");
+				}
+			} else {
+				// resolve the given reference within this git repository and
+				// determine the Commit ID, which is behind that reference
+				commitoid = this.repoBase.resolveReference(loc.repo, repo, loc.ref);
+				if (commitoid == null) {
+					throw new LocalInternalServerException("Specified reference could not be found / invalid reference");
+				}
+			}
+
+			String commitid = commitoid.getName();
+			this.log.fine("Commit ID behind ref: %s", commitid);
+
+			long profiler_commitResolved = System.nanoTime();
+			this.metrics.record(Metrics.Stage.RESOLVE_REFERENCE, profiler_commitResolved - profiler_repoLoaded);
+
+			this.addDebugHeader("commitid", commitid);
+
+			boolean post = "POST".equals(this.request.getMethod());
+			if (!pinned && !post && this.redirectToCommit) {
+				this.redirectToCommit(loc, commitid);
+				return;
+			}
+
+			TreePathCache.CommitEntry commit;
+			try {
+				commit = this.getCommit(repo, commitoid);
+			} catch (MissingObjectException | IncorrectObjectTypeException e) {
+				if (!pinned) {
+					throw e;
+				}
+				throw new LocalInternalServerException("Specified commit could not be found");
+			}
+			if (post) {
+				this.sendBatch(repo, commit, loc.file);
+				return;
+			}
+			if (pinned) {
+				this.response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+			}
+
+			TreePathCache.Entry entry = this.getEntryInCommit(repo, commitoid, loc.file);
+			if (entry != null && entry.getMode() == FileMode.TREE) {
+				this.metrics.record(Metrics.Stage.RESOLVE_FILE, System.nanoTime() - profiler_commitResolved);
+				this.sendTree(repo, commit, entry.getObjectId(), loc);
+				return;
+			}
+
+			ObjectId fileoid = this.getFileObjectId(entry);
+			if (this.log.isFineEnabled()) {
+				this.log.fine("File object ID: %s", fileoid.getName());
+			}
+			this.addDebugHeader("objectid", fileoid.getName());
+
+			long profiler_fileResolved = System.nanoTime();
+			this.metrics.record(Metrics.Stage.RESOLVE_FILE, profiler_fileResolved - profiler_commitResolved);
+
+			/*
+			 * Note that we can only send a debug header until we did not send the
+			 * HTTP body (in our case, this is the file itself) yet.
+			 */
+			if (this.isDebug) {
+				long delta_determineLocation = profiler_determineLocation - profiler_start;
+				long delta_determineRepo = profiler_determineRepo - profiler_determineLocation;
+				long delta_repoLoaded = profiler_repoLoaded - profiler_admitted;
+				long delta_commitResolved = profiler_commitResolved - profiler_repoLoaded;
+				long delta_fileResolved = profiler_fileResolved - profiler_commitResolved;
+				long delta_admitted = profiler_admitted - profiler_determineRepo;
+
+				// the admission comes last, such that the positions of the
+				// other values stay the same
+				this.addDebugHeader("profiler", String.format("%d %d %d %d %d %d", delta_determineLocation,
+						delta_determineRepo, delta_repoLoaded, delta_commitResolved, delta_fileResolved,
+						delta_admitted));
+			}
+
+			/*
+			 * The blob id is a hash of the file's content, so it is a perfect
+			 * strong validator. Clients re-polling an unchanged file are
+			 * answered without opening the object at all.
+			 */
+			String etag = "\"" + fileoid.getName() + "\"";
+			this.response.setHeader("ETag", etag);
+			// the file may be sent compressed, depending on Accept-Encoding
+			this.response.setHeader("Vary", "Accept-Encoding");
+			this.response.setDateHeader("Last-Modified", commit.getCommitTime());
+			if (this.isNotModified(etag, commit.getCommitTime())) {
+				this.log.fine("Client already has the current version of the file");
+				this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			this.sendFile(repo, fileoid, etag, commit.getCommitTime());
+			// Note that with asynchronous output, the transfer may still be running here
+		} finally {
+			// hands the repository back to the RepoBase
+			repo.close();
+		}
+	}
+
+	/**
+	 * redirects the client to the URL which names the commit instead of the
+	 * reference; the redirect itself must not be cached, as the reference
+	 * moves on
+	 * 
+	 * @param loc
+	 *            the location of the request
+	 * @param commitid
+	 *            the id of the commit the reference currently points to
+	 */
+	private void redirectToCommit(Location loc, String commitid) throws IOException {
+		// repository and file are taken from the URL as they are, i.e. still encoded
+		StringBuilder target = new StringBuilder(this.request.getContextPath());
+		target.append('/').append(loc.repo).append('/').append(commitid).append('/').append(loc.file);
+		String query = this.request.getQueryString();
+		if (query != null) {
+			target.append('?').append(query);
+		}
+
+		this.log.fine("Redirecting to %s", target);
+		this.response.setHeader("Cache-Control", "no-cache");
+		this.response.sendRedirect(target.toString());
+	}
+
+	/**
+	 * evaluates the conditional headers If-None-Match and If-Modified-Since
+	 * of the request (see RFC 7232)
+	 * 
+	 * @param etag
+	 *            the entity tag of the file
+	 * @param lastModified
+	 *            the time of the last modification of the file
+	 * @return <code>true</code> if the client's copy of the file is still
+	 *         valid
+	 */
+	private boolean isNotModified(String etag, long lastModified) {
+		String ifNoneMatch = this.request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			// If-Modified-Since must be ignored if If-None-Match is present
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) {
+					// weak comparison is used for GET requests
+					candidate = candidate.substring(2);
+				}
+				// the compressed variant is still valid as long as the file is
+				if ("*".equals(candidate) || etag.equals(candidate) || gzipEtag(etag).equals(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = this.request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException iae) {
+			// an invalid date must be ignored
+			return false;
+		}
+		// HTTP dates have a resolution of seconds only
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	void sendFile(Repository repo, ObjectId fileoid, String etag, long lastModified) throws IOException {
+		this.transferStart = System.nanoTime();
+
+		// retrieve the Object from the Git repository (or from memory, if
+		// it is a frequently requested one)
+		ObjectLoader loader = this.repoBase.openBlob(repo, fileoid);
+
+		// determine the length of the object which is requested
+		long size = loader.getSize();
+		if (this.log.isFineEnabled()) {
+			this.log.fine("File size to transfer: %d", size);
+		}
+		this.response.setHeader("Accept-Ranges", "bytes");
+
+		List<ByteRange> ranges = this.determineRanges(size, etag, lastModified);
+		if (ranges == null && this.request.getHeader("Range") == null && this.acceptsGzip()
+				&& this.repoBase.getCompressedBlobCache().isCandidate(size)) {
+			byte[] compressed = this.repoBase.getCompressedBlobCache().getGzip(fileoid, loader);
+			if (compressed != null) {
+				this.sendCompressed(repo, compressed, etag);
+				return;
+			}
+		}
+
+		if (ranges == null) {
+			this.response.setContentLengthLong(size);
+			if (this.sendStored(loader, 0, size)) {
+				return;
+			}
+			if (this.asyncOutput) {
+				this.transferAsync(repo, loader.openStream(), size);
+				return;
+			}
+			OutputStream sos = this.getOutputStream();
+
+			// copy the bytes from the git repository to the output stream of this
+			// servlet
+			loader.copyTo(sos);
+			this.transferCompleted(size);
+		} else if (ranges.isEmpty()) {
+			this.log.fine("Requested range cannot be satisfied");
+			this.response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			this.response.setHeader("Content-Range", "bytes */" + size);
+			return;
+		} else {
+			this.sendRanges(repo, loader, size, ranges);
+		}
+
+		this.log.fine("Transfer is completed");
+	}
+
+	/**
+	 * sends (a part of) a file which is served from the BlobStore: with the
+	 * sendfile support of the container if available (Tomcat) and no
+	 * admission control applies, which is the only way to send it without
+	 * copying it through the JVM; otherwise with FileChannel.transferTo to the
+	 * response's stream, which copies it through a buffer, but still saves
+	 * inflating it. The latter blocks the thread, so it is not used with
+	 * asynchronous output.
+	 * 
+	 * @param loader
+	 *            the loader of the file
+	 * @param start
+	 *            the position of the first byte to send
+	 * @param length
+	 *            the number of bytes to send
+	 * @return <code>true</code> if the file has been sent,
+	 *         <code>false</code> if it needs to be sent by other means
+	 */
+	private boolean sendStored(ObjectLoader loader, long start, long length) throws IOException {
+		if (!(loader instanceof BlobStore.StoredLoader)) {
+			return false;
+		}
+		BlobStore.StoredLoader stored = (BlobStore.StoredLoader) loader;
+		File file = stored.getFile();
+
+		/*
+		 * The container only sends the file after the request has been
+		 * processed, i.e. after the permit has been released; with admission
+		 * control, the transfer must still count as active and possibly be
+		 * throttled, so sendfile is not used then.
+		 */
+		if (Boolean.TRUE.equals(this.request.getAttribute(SENDFILE_SUPPORT)) && this.permit == null) {
+			this.log.fine("Handing transfer over to sendfile of the container");
+			// the container opens the file only after we have returned
+			stored.pin();
+			this.request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+			this.request.setAttribute(SENDFILE_START, Long.valueOf(start));
+			this.request.setAttribute(SENDFILE_END, Long.valueOf(start + length));
+			this.transferCompleted(length);
+			return true;
+		}
+		if (this.asyncOutput) {
+			return false;
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			WritableByteChannel out = Channels.newChannel(this.getOutputStream());
+			long position = start;
+			long end = start + length;
+			while (position < end) {
+				long transferred = channel.transferTo(position, end - position, out);
+				if (transferred <= 0) {
+					throw new EOFException("Unexpected end of stored file");
+				}
+				position += transferred;
+			}
+		} finally {
+			channel.close();
+		}
+		this.transferCompleted(length);
+		this.log.fine("Transfer is completed");
+		return true;
+	}
+
+	/**
+	 * sends the gzip variant of the file. Ranges are never served from the
+	 * compressed variant, so a client resuming a download always gets the
+	 * plain file.
+	 * 
+	 * @param repo
+	 *            the repository of the file
+	 * @param compressed
+	 *            the compressed content
+	 * @param etag
+	 *            the entity tag of the plain file
+	 */
+	private void sendCompressed(Repository repo, byte[] compressed, String etag) throws IOException {
+		if (this.log.isFineEnabled()) {
+			this.log.fine("Sending gzip variant of %d bytes", compressed.length);
+		}
+		this.response.setHeader("Content-Encoding", CompressedBlobCache.GZIP);
+		// a different representation requires a different entity tag
+		this.response.setHeader("ETag", gzipEtag(etag));
+		this.response.setContentLength(compressed.length);
+
+		if (this.asyncOutput) {
+			this.transferAsync(repo, new ByteArrayInputStream(compressed), compressed.length);
+			return;
+		}
+		this.getOutputStream().write(compressed);
+		this.transferCompleted(compressed.length);
+		this.log.fine("Transfer is completed");
+	}
+
+	private static String gzipEtag(String etag) {
+		return etag.substring(0, etag.length() - 1) + "-" + CompressedBlobCache.GZIP + "\"";
+	}
+
+	/**
+	 * evaluates the header Accept-Encoding of the request (see RFC 7231)
+	 * 
+	 * @return <code>true</code> if the client accepts gzip compressed content
+	 */
+	private boolean acceptsGzip() {
+		String acceptEncoding = this.request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		boolean accepted = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+			if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+				continue;
+			}
+
+			double quality = 1.0;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException nfe) {
+						quality = 0.0;
+					}
+				}
+			}
+			if (!name.equals("*")) {
+				// an explicit entry for gzip overrides the wildcard
+				return quality > 0.0;
+			}
+			accepted = quality > 0.0;
+		}
+		return accepted;
+	}
+
+	/**
+	 * evaluates the headers Range and If-Range of the request (see RFC 7233)
+	 * 
+	 * @param size
+	 *            the size of the file
+	 * @param etag
+	 *            the entity tag of the file
+	 * @param lastModified
+	 *            the time of the last modification of the file
+	 * @return the ranges of the file which shall be sent, an empty list if the
+	 *         requested ranges cannot be satisfied, or <code>null</code> if
+	 *         the full file shall be sent
+	 */
+	private List<ByteRange> determineRanges(long size, String etag, long lastModified) {
+		String range = this.request.getHeader("Range");
+		if (range == null) {
+			return null;
+		}
+
+		String ifRange = this.request.getHeader("If-Range");
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				// strong comparison is required here; thus weak tags never match
+				if (!etag.equals(ifRange)) {
+					return null;
+				}
+			} else {
+				long ifRangeDate;
+				try {
+					ifRangeDate = this.request.getDateHeader("If-Range");
+				} catch (IllegalArgumentException iae) {
+					return null;
+				}
+				if (ifRangeDate / 1000 != lastModified / 1000) {
+					return null;
+				}
+			}
+		}
+
+		List<ByteRange> ranges = ByteRange.parse(range, size);
+		if (ranges == null) {
+			this.log.fine("Ignoring invalid range header %s", range);
+		}
+		return ranges;
+	}
+
+	private void sendRanges(Repository repo, ObjectLoader loader, long size, List<ByteRange> ranges)
+			throws IOException {
+		this.response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+		if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			if (this.log.isFineEnabled()) {
+				this.log.fine("Transferring range %d-%d", range.getStart(), range.getEnd());
+			}
+			this.response.setHeader("Content-Range", range.toContentRange(size));
+			this.response.setContentLengthLong(range.getLength());
+			if (this.sendStored(loader, range.getStart(), range.getLength())) {
+				return;
+			}
+
+			InputStream in = loader.openStream();
+			try {
+				IO.skipFully(in, range.getStart());
+				if (this.asyncOutput) {
+					this.transferAsync(repo, in, range.getLength());
+					in = null; // now owned by the transfer
+					return;
+				}
+				copy(in, this.getOutputStream(), range.getLength());
+				this.transferCompleted(range.getLength());
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+			return;
+		}
+
+		/*
+		 * Multiple ranges are sent as multipart/byteranges. All part headers
+		 * are prepared upfront, as we need to announce the total length of
+		 * the body. This is always done synchronously, as it is a rare case.
+		 */
+		String boundary = "gitservlet-" + Long.toHexString(System.nanoTime());
+		byte[][] partHeaders = new byte[ranges.size()][];
+		long contentLength = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			partHeaders[i] = String.format("\r\n--%s\r\nContent-Range: %s\r\n\r\n", boundary,
+					range.toContentRange(size)).getBytes(StandardCharsets.US_ASCII);
+			contentLength += partHeaders[i].length + range.getLength();
+		}
+		byte[] trailer = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+		contentLength += trailer.length;
+
+		this.response.setContentType("multipart/byteranges; boundary=" + boundary);
+		this.response.setContentLengthLong(contentLength);
+		OutputStream sos = this.getOutputStream();
+
+		// the ranges are sorted, so the object only needs to be read once
+		InputStream in = loader.openStream();
+		try {
+			long position = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange range = ranges.get(i);
+				IO.skipFully(in, range.getStart() - position);
+				sos.write(partHeaders[i]);
+				copy(in, sos, range.getLength());
+				position = range.getEnd() + 1;
+			}
+		} finally {
+			in.close();
+		}
+		sos.write(trailer);
+		this.transferCompleted(contentLength);
+	}
+
+	/**
+	 * hands the transfer of the stream over to non-blocking I/O; the
+	 * container thread is released while the client is not able to receive
+	 * more data
+	 * 
+	 * @param repo
+	 *            the repository, which must not be closed while the transfer
+	 *            is still running
+	 * @param in
+	 *            the stream of the file's content, which is closed once the
+	 *            transfer has completed
+	 * @param length
+	 *            the number of bytes which shall be sent
+	 */
+	private void transferAsync(Repository repo, InputStream in, long length) throws IOException {
+		this.log.fine("Handing transfer over to asynchronous output");
+		// the request may already run asynchronously on a RequestExecutor
+		AsyncContext asyncContext = this.request.isAsyncStarted() ? this.request.getAsyncContext() : this.request
+				.startAsync();
+		AsyncTransfer.start(asyncContext, in, length, repo, this.log, this.metrics, this.transferStart, this.permit);
+		this.transferPending = true;
+	}
+
+	/**
+	 * @return the stream to the client, throttled according to the byte rate
+	 *         limits of the AdmissionControl
+	 */
+	private OutputStream getOutputStream() throws IOException {
+		OutputStream out = this.response.getOutputStream();
+		return this.permit == null ? out : this.permit.throttle(out);
+	}
+
+	/**
+	 * @return <code>true</code> if the response is still being sent by an
+	 *         {@link AsyncTransfer} after {@link #process()} has returned
+	 */
+	public boolean isTransferPending() {
+		return this.transferPending;
+	}
+
+	private void transferCompleted(long bytes) {
+		if (this.metrics == null) {
+			// sendFile has been called without process(), as the benchmarks do
+			return;
+		}
+		this.metrics.record(Metrics.Stage.TRANSFER, System.nanoTime() - this.transferStart);
+		this.metrics.addBytesSent(bytes);
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(length, 64 * 1024)];
+		while (length > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+			if (read < 0) {
+				throw new EOFException("Unexpected end of object stream");
+			}
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+
+	/**
+	 * sends several files of a commit as one archive (zip by default, see
+	 * parameter <code>format</code>). The files are either listed in the
+	 * body of the request, one path per line, or selected by the glob pattern
+	 * in the parameter <code>glob</code>; both are relative to the directory
+	 * given in the URL. Listing a directory selects all files below it.
+	 * <p>
+	 * The tree is walked only once for all files, and each file is streamed
+	 * into the archive straight from the repository.
+	 * 
+	 * @param repo
+	 *            the repository
+	 * @param commit
+	 *            the commit which contains the files
+	 * @param directory
+	 *            the directory within the commit
+	 */
+	private void sendBatch(Repository repo, TreePathCache.CommitEntry commit, String directory)
+			throws IOException, LocalInternalServerException {
+		long start = System.nanoTime();
+		ArchiveWriter.Format format = this.getArchiveFormat(ArchiveWriter.Format.ZIP);
+		String base = trimSlashes(directory);
+		String prefix = base.isEmpty() ? "" : base + "/";
+
+		PathGlob glob = null;
+		Set<String> missing = new HashSet<String>();
+		TreeFilter filter;
+		if (this.request.getParameter("glob") != null) {
+			glob = new PathGlob(trimSlashes(this.request.getParameter("glob")));
+			String walked = trimSlashes(prefix + glob.getPrefix());
+			filter = walked.isEmpty() ? TreeFilter.ALL : PathFilter.create(walked);
+		} else {
+			BufferedReader body = new BufferedReader(new InputStreamReader(this.request.getInputStream(),
+					StandardCharsets.UTF_8));
+			String line;
+			while ((line = body.readLine()) != null) {
+				String path = trimSlashes(line.trim());
+				if (path.isEmpty()) {
+					continue;
+				}
+				if (missing.size() == MAX_BATCH_FILES) {
+					throw new LocalInternalServerException("Too many files requested");
+				}
+				missing.add(prefix + path);
+			}
+			if (missing.isEmpty()) {
+				throw new LocalInternalServerException("No files specified");
+			}
+			filter = PathFilterGroup.createFromStrings(missing);
+		}
+		if (this.log.isFineEnabled()) {
+			this.log.fine("Batch request for %s in directory %s", glob == null ? missing.size()
+					+ " paths" : "glob", base);
+		}
+
+		List<BatchFile> files = new ArrayList<BatchFile>();
+		ObjectReader reader = repo.newObjectReader();
+		TreeWalk walk = new TreeWalk(reader);
+		try {
+			walk.addTree(commit.getTreeId());
+			walk.setRecursive(true);
+			walk.setFilter(filter);
+			while (walk.next()) {
+				FileMode mode = walk.getFileMode(0);
+				if (mode.getObjectType() != Constants.OBJ_BLOB) {
+					// submodules have no content in this repository
+					continue;
+				}
+
+				String path = walk.getPathString();
+				String name = path.substring(prefix.length());
+				if (glob != null && !glob.matches(name)) {
+					continue;
+				}
+				if (files.size() == MAX_BATCH_FILES) {
+					throw new LocalInternalServerException("Too many files requested");
+				}
+				files.add(new BatchFile(name, walk.getObjectId(0), mode));
+
+				// the file has been requested by its own path or by one of its
+				// directories
+				for (int slash = path.length(); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+					missing.remove(path.substring(0, slash));
+				}
+			}
+		} finally {
+			walk.close();
+			reader.close();
+		}
+
+		if (!missing.isEmpty()) {
+			this.log.info("File of batch could not be found in the commit");
+			throw new LocalInternalServerException("File could not be found for this reference: "
+					+ missing.iterator().next().substring(prefix.length()));
+		}
+		this.metrics.record(Metrics.Stage.RESOLVE_FILE, System.nanoTime() - start);
+
+		this.transferStart = System.nanoTime();
+		this.response.setContentType(format.getContentType());
+		ArchiveWriter archive = ArchiveWriter.open(format, this.getOutputStream(), commit.getCommitTime());
+		for (BatchFile file : files) {
+			archive.addFile(file.name, file.mode, this.repoBase.openBlob(repo, file.id));
+		}
+		archive.finish();
+		this.transferCompleted(archive.getBytesWritten());
+		if (this.log.isFineEnabled()) {
+			this.log.fine("Batch of %d files is completed", files.size());
+		}
+	}
+
+	/**
+	 * sends a directory: as an archive in the format given by the parameter
+	 * <code>format</code>, or as listing if there is no such parameter. The
+	 * archive is streamed from a single walk over the tree, and cached by
+	 * tree id (see ArchiveCache).
+	 * 
+	 * @param repo
+	 *            the repository
+	 * @param commit
+	 *            the commit which contains the directory
+	 * @param treeId
+	 *            the id of the directory's tree
+	 * @param loc
+	 *            the location of the directory
+	 */
+	private void sendTree(Repository repo, TreePathCache.CommitEntry commit, ObjectId treeId, Location loc)
+			throws IOException, LocalInternalServerException {
+		ArchiveWriter.Format format = this.getArchiveFormat(null);
+		if (format == null) {
+			this.sendListing(repo, commit, treeId);
+			return;
+		}
+
+		// the archive's content only depends on the tree (see ARCHIVE_TIME)
+		String etag = "\"" + treeId.getName() + "." + format.getExtension() + "\"";
+		this.response.setHeader("ETag", etag);
+		this.response.setDateHeader("Last-Modified", commit.getCommitTime());
+		if (this.isNotModified(etag, commit.getCommitTime())) {
+			this.log.fine("Client already has the current version of the archive");
+			this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		this.transferStart = System.nanoTime();
+		this.response.setContentType(format.getContentType());
+		this.response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s.%s\"",
+				archiveName(loc), format.getExtension()));
+
+		FileInputStream cached = this.repoBase.getArchiveCache().open(treeId, format);
+		if (cached != null) {
+			this.log.fine("Sending archive from cache");
+			long size = cached.getChannel().size();
+			this.response.setContentLengthLong(size);
+			if (this.asyncOutput) {
+				this.transferAsync(repo, cached, size);
+				return;
+			}
+			try {
+				copy(cached, this.getOutputStream(), size);
+			} finally {
+				cached.close();
+			}
+			this.transferCompleted(size);
+			return;
+		}
+
+		ArchiveCache.Recording recording = this.repoBase.getArchiveCache().record(treeId, format,
+				this.getOutputStream());
+		ObjectReader reader = repo.newObjectReader();
+		TreeWalk walk = new TreeWalk(reader);
+		try {
+			ArchiveWriter archive = ArchiveWriter.open(format, recording, ARCHIVE_TIME);
+			walk.addTree(treeId);
+			walk.setRecursive(true);
+			int count = 0;
+			while (walk.next()) {
+				FileMode mode = walk.getFileMode(0);
+				if (mode.getObjectType() == Constants.OBJ_BLOB) {
+					archive.addFile(walk.getPathString(), mode, this.repoBase.openBlob(repo,
+							walk.getObjectId(0)));
+					count++;
+				}
+			}
+			archive.finish();
+			recording.commit();
+
+			this.transferCompleted(archive.getBytesWritten());
+			if (this.log.isFineEnabled()) {
+				this.log.fine("Archive of %d files is completed", count);
+			}
+		} finally {
+			walk.close();
+			reader.close();
+			recording.close();
+		}
+	}
+
+	/**
+	 * sends the entries of a directory as JSON object, like
+	 * 
+	 * <pre>
+	 * {"tree":"&lt;tree id&gt;","entries":[
+	 * {"name":"a.txt","mode":"100644","type":"blob","id":"&lt;blob id&gt;","size":12},
+	 * {"name":"sub","mode":"040000","type":"tree","id":"&lt;tree id&gt;"}
+	 * ]}
+	 * </pre>
+	 * 
+	 * With the parameter <code>recursive=true</code>, the entries of all
+	 * subdirectories are listed as well (named by their path). The entries
+	 * are written while walking the tree, so the memory used does not depend
+	 * on the size of the directory.
+	 * 
+	 * @param repo
+	 *            the repository
+	 * @param commit
+	 *            the commit which contains the directory
+	 * @param treeId
+	 *            the id of the directory's tree
+	 */
+	private void sendListing(Repository repo, TreePathCache.CommitEntry commit, ObjectId treeId)
+			throws IOException {
+		boolean recursive = "true".equals(this.request.getParameter("recursive"));
+
+		// the tree id covers the ids of all entries, also in subdirectories
+		String etag = "\"" + treeId.getName() + (recursive ? ".recursive" : "") + ".json\"";
+		this.response.setHeader("ETag", etag);
+		this.response.setDateHeader("Last-Modified", commit.getCommitTime());
+		if (this.isNotModified(etag, commit.getCommitTime())) {
+			this.log.fine("Client already has the current listing of the directory");
+			this.response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		this.transferStart = System.nanoTime();
+		this.response.setContentType("application/json; charset=UTF-8");
+		CountingOutputStream counter = new CountingOutputStream(this.getOutputStream());
+		Writer out = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+
+		ObjectReader reader = repo.newObjectReader();
+		TreeWalk walk = new TreeWalk(reader);
+		try {
+			walk.addTree(treeId);
+			out.write("{\"tree\":\"" + treeId.getName() + "\",\"entries\":[");
+			boolean first = true;
+			while (walk.next()) {
+				FileMode mode = walk.getFileMode(0);
+				ObjectId id = walk.getObjectId(0);
+
+				out.write(first ? "\n{\"name\":\"" : ",\n{\"name\":\"");
+				first = false;
+				writeJsonString(out, walk.getPathString());
+				out.write("\",\"mode\":\"");
+				out.write(String.format("%06o", mode.getBits()));
+				out.write("\",\"type\":\"");
+				out.write(Constants.typeString(mode.getObjectType()));
+				out.write("\",\"id\":\"");
+				out.write(id.getName());
+				out.write('"');
+				if (mode.getObjectType() == Constants.OBJ_BLOB) {
+					out.write(",\"size\":");
+					out.write(Long.toString(reader.getObjectSize(id, Constants.OBJ_BLOB)));
+				}
+				out.write('}');
+
+				if (recursive && walk.isSubtree()) {
+					walk.enterSubtree();
+				}
+			}
+			out.write("\n]}\n");
+			out.flush();
+		} finally {
+			walk.close();
+			reader.close();
+		}
+		this.transferCompleted(counter.getCount());
+	}
+
+	private static void writeJsonString(Writer out, String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the archive of a directory as proposed to the
+	 *         client, like "repo-master-dir"
+	 */
+	private static String archiveName(Location loc) {
+		String directory = trimSlashes(loc.file);
+		String name = loc.repo + "-" + loc.ref;
+		if (!directory.isEmpty()) {
+			name += "-" + directory.substring(directory.lastIndexOf('/') + 1);
+		}
+		// the name is quoted within the header
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * evaluates the parameter <code>format</code> of the request
+	 * 
+	 * @param defaultFormat
+	 *            the format to use if the parameter is missing
+	 * @return the requested archive format
+	 * @throws LocalInternalServerException
+	 *             if the format is not supported
+	 */
+	private ArchiveWriter.Format getArchiveFormat(ArchiveWriter.Format defaultFormat)
+			throws LocalInternalServerException {
+		String name = this.request.getParameter("format");
+		if (name == null) {
+			return defaultFormat;
+		}
+
+		ArchiveWriter.Format format = ArchiveWriter.Format.parse(name);
+		if (format == null) {
+			throw new LocalInternalServerException("Unsupported archive format");
+		}
+		return format;
+	}
+
+	private static String trimSlashes(String path) {
+		int start = 0;
+		int end = path.length();
+		while (start < end && path.charAt(start) == '/') {
+			start++;
+		}
+		while (end > start && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		return path.substring(start, end);
+	}
+
+	private TreePathCache.CommitEntry getCommit(Repository repo, ObjectId commitoid) throws IOException {
+		ObjectReader reader = repo.newObjectReader();
+		try {
+			return this.repoBase.getTreePathCache().findCommit(reader, commitoid);
+		} finally {
+			reader.close();
+		}
+	}
+
+	ObjectId getFileObjectIdInCommit(Repository repo, ObjectId commitoid, String filename)
+			throws LocalInternalServerException, IOException {
+		return this.getFileObjectId(this.getEntryInCommit(repo, commitoid, filename));
+	}
+
+	/**
+	 * @return the file or directory at the given path, or <code>null</code>
+	 *         if there is nothing at this path
+	 */
+	private TreePathCache.Entry getEntryInCommit(Repository repo, ObjectId commitoid, String filename)
+			throws IOException {
+		if (this.log.isFineEnabled()) {
+			this.log.fine("searching for file named %s in commit %s", filename, commitoid.getName());
+		}
+
+		/*
+		 * Clients tend to request multiple files within the same tree, so the
+		 * tree walking is only done once per path; see TreePathCache.
+		 */
+		TreePathCache.Entry entry;
+		ObjectReader reader = repo.newObjectReader();
+		try {
+			entry = this.repoBase.getTreePathCache().find(reader, commitoid, filename);
+		} finally {
+			reader.close();
+		}
+		return entry;
+	}
+
+	private ObjectId getFileObjectId(TreePathCache.Entry entry) throws LocalInternalServerException {
+		if (entry == null || entry.getMode().getObjectType() != Constants.OBJ_BLOB) {
+			this.log.info("File could not be found in the commit");
+			throw new LocalInternalServerException("File could not be found for this reference");
+		}
+
+		ObjectId foid = entry.getObjectId();
+		if (this.log.isFineEnabled()) {
+			this.log.fine("File has Git Object Id: %s", foid.getName());
+		}
+		return foid;
+	}
+}
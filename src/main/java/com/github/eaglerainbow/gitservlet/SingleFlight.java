@@ -0,0 +1,111 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads the
+ * value, further callers arriving while the load is in flight wait for its
+ * result instead of loading the value again. Once the load has finished,
+ * the next caller loads anew; the result is not kept (that is the job of
+ * the caches which use this class).
+ * <p>
+ * This flattens the load caused by many identical requests arriving at
+ * once, e.g. when a new release has been tagged.
+ *
+ * @param <K>
+ *            the type of the keys, which must implement equals and hashCode
+ * @param <V>
+ *            the type of the values
+ */
+public class SingleFlight<K, V> {
+	/**
+	 * loads the value of a key
+	 */
+	public interface Loader<V> {
+		V load() throws IOException;
+	}
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight;
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public SingleFlight() {
+		this.inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	}
+
+	/**
+	 * @param key
+	 *            the key of the value
+	 * @param loader
+	 *            loads the value, unless a load of the same key is already in
+	 *            flight
+	 * @return the value, as returned by the loader of this or another caller
+	 * @throws IOException
+	 *             if the load has failed (the exception of the loader is
+	 *             passed on to all waiting callers)
+	 */
+	public V load(K key, Loader<V> loader) throws IOException {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			this.coalesced.incrementAndGet();
+			return await(existing);
+		}
+
+		try {
+			V value = loader.load();
+			future.complete(value);
+			return value;
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.inFlight.remove(key, future);
+		}
+	}
+
+	private static <V> V await(CompletableFuture<V> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a concurrent load");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * @return the number of callers which have waited for the load of
+	 *         another caller instead of loading the value themselves
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.get();
+	}
+}
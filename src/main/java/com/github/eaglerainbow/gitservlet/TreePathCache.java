@@ -0,0 +1,291 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Caches the resolution of a path within a commit to the Git object stored
+ * there.
+ * <p>
+ * Lookups are keyed by (tree id, path); additionally the tree id and the
+ * commit time of each commit are remembered. As all these ids are content
+ * hashes, an entry can never become stale and the cache is shared by all
+ * repositories of the RepoBase. Entries are only evicted (least recently
+ * used first) to stay within the configured memory budget.
+ */
+public class TreePathCache {
+	/**
+	 * the Git object found at a path within a tree
+	 */
+	public static class Entry {
+		private final ObjectId objectId;
+		private final FileMode mode;
+
+		public Entry(ObjectId objectId, FileMode mode) {
+			this.objectId = objectId;
+			this.mode = mode;
+		}
+
+		public ObjectId getObjectId() {
+			return this.objectId;
+		}
+
+		public FileMode getMode() {
+			return this.mode;
+		}
+	}
+
+	/**
+	 * the tree and the commit time of a commit
+	 */
+	public static class CommitEntry extends Entry {
+		private final long commitTime;
+
+		public CommitEntry(ObjectId treeId, long commitTime) {
+			super(treeId, FileMode.TREE);
+			this.commitTime = commitTime;
+		}
+
+		public ObjectId getTreeId() {
+			return this.getObjectId();
+		}
+
+		/**
+		 * @return the commit time in milliseconds since the epoch
+		 */
+		public long getCommitTime() {
+			return this.commitTime;
+		}
+	}
+
+	private static class Key {
+		private final ObjectId id;
+
+		/**
+		 * the path within the tree <code>id</code>, or <code>null</code> if
+		 * <code>id</code> is a commit whose tree is looked up
+		 */
+		private final String path;
+
+		public Key(AnyObjectId id, String path) {
+			this.id = id.copy();
+			this.path = path;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.path == null ? this.id.hashCode() : 31 * this.id.hashCode() + this.path.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.id.equals(other.id)
+					&& (this.path == null ? other.path == null : this.path.equals(other.path));
+		}
+
+		/**
+		 * @return a rough estimate of the heap consumed by the key and its
+		 *         entry in the cache
+		 */
+		public long weight() {
+			return ENTRY_OVERHEAD + (this.path == null ? 0 : 2L * this.path.length());
+		}
+	}
+
+	/**
+	 * approximate heap usage of a cache entry apart from its path: map node,
+	 * key, entry and two object ids
+	 */
+	private static final long ENTRY_OVERHEAD = 200;
+
+	/**
+	 * marks paths which do not exist within a tree; trees cannot change, so
+	 * this is as cacheable as a hit
+	 */
+	private static final Entry MISSING = new Entry(ObjectId.zeroId(), FileMode.MISSING);
+
+	private final long maxWeight;
+
+	/**
+	 * access-ordered; guarded by <code>this</code>
+	 */
+	private final LinkedHashMap<Key, Entry> entries;
+	private long weight;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * coalesces concurrent lookups of the same commit or path
+	 */
+	private final SingleFlight<Key, Entry> lookups = new SingleFlight<Key, Entry>();
+
+	/**
+	 * @param maxWeight
+	 *            the approximate number of bytes which the cache may occupy
+	 *            on the heap
+	 */
+	public TreePathCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+		this.entries = new LinkedHashMap<Key, Entry>(1024, 0.75f, true);
+	}
+
+	/**
+	 * looks up the Git object which is stored at the given path within the
+	 * tree of a commit
+	 *
+	 * @param reader
+	 *            the reader of the repository containing the commit
+	 * @param commitId
+	 *            the commit (or an annotated tag pointing to it)
+	 * @param path
+	 *            the path within the commit; the empty string denotes the root
+	 *            tree
+	 * @return the object at the path, or <code>null</code> if there is no such
+	 *         path in the commit
+	 * @throws IOException
+	 *             if the objects cannot be read from the repository
+	 */
+	public Entry find(final ObjectReader reader, AnyObjectId commitId, final String path) throws IOException {
+		ObjectId treeId = this.findCommit(reader, commitId).getTreeId();
+		if (path.isEmpty()) {
+			return new Entry(treeId, FileMode.TREE);
+		}
+
+		final Key key = new Key(treeId, path);
+		Entry entry = this.get(key);
+		if (entry == null) {
+			entry = this.lookups.load(key, new SingleFlight.Loader<Entry>() {
+				@Override
+				public Entry load() throws IOException {
+					Entry found;
+					TreeWalk treeWalk = TreeWalk.forPath(reader, path, key.id);
+					if (treeWalk == null) {
+						found = MISSING;
+					} else {
+						try {
+							found = new Entry(treeWalk.getObjectId(0), treeWalk.getFileMode(0));
+						} finally {
+							treeWalk.close();
+						}
+					}
+					TreePathCache.this.put(key, found);
+					return found;
+				}
+			});
+		}
+
+		return entry == MISSING ? null : entry;
+	}
+
+	/**
+	 * looks up the tree and the commit time of a commit
+	 *
+	 * @param reader
+	 *            the reader of the repository containing the commit
+	 * @param commitId
+	 *            the commit (or an annotated tag pointing to it)
+	 * @return the information about the commit
+	 * @throws IOException
+	 *             if the commit cannot be read from the repository
+	 */
+	public CommitEntry findCommit(final ObjectReader reader, AnyObjectId commitId) throws IOException {
+		final Key key = new Key(commitId, null);
+		CommitEntry entry = (CommitEntry) this.get(key);
+		if (entry == null) {
+			entry = (CommitEntry) this.lookups.load(key, new SingleFlight.Loader<Entry>() {
+				@Override
+				public Entry load() throws IOException {
+					CommitEntry found;
+					RevWalk rWalk = new RevWalk(reader);
+					try {
+						RevCommit commit = rWalk.parseCommit(key.id);
+						found = new CommitEntry(commit.getTree().copy(), commit.getCommitTime() * 1000L);
+					} finally {
+						rWalk.close();
+					}
+					TreePathCache.this.put(key, found);
+					return found;
+				}
+			});
+		}
+		return entry;
+	}
+
+	private Entry get(Key key) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(key);
+		}
+
+		if (entry == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	private synchronized void put(Key key, Entry entry) {
+		if (this.entries.put(key, entry) == null) {
+			this.weight += key.weight();
+		}
+
+		Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+		while (this.weight > this.maxWeight && it.hasNext()) {
+			Key evicted = it.next().getKey();
+			it.remove();
+			this.weight -= evicted.weight();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of lookups which have waited for a concurrent
+	 *         lookup of the same commit or path
+	 */
+	public long getCoalescedCount() {
+		return this.lookups.getCoalescedCount();
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+}
@@ -0,0 +1,124 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class AdmissionControlTest extends TestCase {
+	public void testRepositoryLimit() throws Exception {
+		AdmissionControl control = new AdmissionControl(0, 1, 0, 0, 0, 0, 0);
+		AdmissionControl.Permit permit = control.admit("a");
+
+		try {
+			control.admit("a");
+			fail("request should have been rejected");
+		} catch (LocalServiceUnavailableException e) {
+			assertEquals(1, e.getRetryAfterSeconds());
+		}
+		// other repositories are not affected
+		control.admit("b").release();
+
+		permit.release();
+		control.admit("a").release();
+	}
+
+	public void testGlobalLimit() throws Exception {
+		AdmissionControl control = new AdmissionControl(1, 0, 0, 0, 0, 0, 0);
+		AdmissionControl.Permit permit = control.admit("a");
+
+		try {
+			control.admit("b");
+			fail("request should have been rejected");
+		} catch (LocalServiceUnavailableException e) {
+			// expected
+		}
+
+		permit.release();
+		control.admit("b").release();
+	}
+
+	public void testReleaseTwiceFreesOneSlot() throws Exception {
+		AdmissionControl control = new AdmissionControl(1, 0, 0, 0, 0, 0, 0);
+		AdmissionControl.Permit permit = control.admit("a");
+		permit.release();
+		permit.release();
+
+		control.admit("a");
+		try {
+			control.admit("a");
+			fail("request should have been rejected");
+		} catch (LocalServiceUnavailableException e) {
+			// expected
+		}
+	}
+
+	public void testQueuedRequestGetsFreedSlot() throws Exception {
+		AdmissionControl control = new AdmissionControl(1, 0, 1, 1, 10000, 0, 0);
+		final AdmissionControl.Permit permit = control.admit("a");
+
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// release anyway
+				}
+				permit.release();
+			}
+		};
+		releaser.start();
+		control.admit("a").release();
+		releaser.join();
+	}
+
+	public void testRepositoryQueueIsSeparate() throws Exception {
+		AdmissionControl control = new AdmissionControl(0, 1, 100, 0, 10000, 0, 0);
+		control.admit("a");
+
+		long start = System.nanoTime();
+		try {
+			control.admit("a");
+			fail("request should have been rejected");
+		} catch (LocalServiceUnavailableException e) {
+			// expected
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+
+	public void testSaturatedServletRejectsAtOnce() throws Exception {
+		AdmissionControl control = new AdmissionControl(1, 1, 0, 100, 10000, 0, 0);
+		control.admit("a");
+
+		// without a slot of the servlet, waiting for the repository is futile
+		long start = System.nanoTime();
+		try {
+			control.admit("a");
+			fail("request should have been rejected");
+		} catch (LocalServiceUnavailableException e) {
+			// expected
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+
+	public void testThrottled() throws Exception {
+		assertFalse(new AdmissionControl(1, 1, 0, 0, 0, 0, 0).admit("a").isThrottled());
+		assertTrue(new AdmissionControl(0, 0, 0, 0, 0, 1024, 0).admit("a").isThrottled());
+		assertTrue(new AdmissionControl(0, 0, 0, 0, 0, 0, 1024).admit("a").isThrottled());
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+public class BlobCacheTest extends TestCase {
+	private static final int MAX_OBJECT_SIZE = 64;
+
+	private InMemoryRepository repo;
+	private BlobCache cache;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+		this.cache = new BlobCache(1024, MAX_OBJECT_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.repo.close();
+	}
+
+	public void testSmallBlobIsCached() throws Exception {
+		byte[] content = "small\n".getBytes(StandardCharsets.UTF_8);
+		ObjectId blobId = this.insert(content);
+
+		assertTrue(Arrays.equals(content, this.cache.open(this.repo, blobId).getBytes()));
+		assertEquals(content.length, this.cache.getSize());
+		assertEquals(1, this.cache.getMissCount());
+
+		assertTrue(Arrays.equals(content, this.cache.open(this.repo, blobId).getBytes()));
+		assertEquals(1, this.cache.getHitCount());
+	}
+
+	public void testBlobAboveThresholdIsNotCached() throws Exception {
+		byte[] content = new byte[MAX_OBJECT_SIZE + 1];
+		Arrays.fill(content, (byte) 'x');
+		ObjectId blobId = this.insert(content);
+
+		ObjectLoader loader = this.cache.open(this.repo, blobId);
+		assertEquals(content.length, loader.getSize());
+		assertTrue(Arrays.equals(content, loader.getBytes()));
+		assertEquals(0, this.cache.getSize());
+
+		this.cache.open(this.repo, blobId);
+		assertEquals(0, this.cache.getHitCount());
+		assertEquals(2, this.cache.getMissCount());
+	}
+
+	private ObjectId insert(byte[] content) throws Exception {
+		ObjectInserter inserter = this.repo.newObjectInserter();
+		try {
+			ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, content);
+			inserter.flush();
+			return blobId;
+		} finally {
+			inserter.close();
+		}
+	}
+}
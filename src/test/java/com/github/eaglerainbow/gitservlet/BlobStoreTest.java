@@ -0,0 +1,140 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.util.FileUtils;
+
+public class BlobStoreTest extends TestCase {
+	private static final byte[] CONTENT = "content of a large file\n".getBytes(StandardCharsets.UTF_8);
+	private static final ObjectId BLOB_ID = ObjectId.fromString("0123456789012345678901234567890123456789");
+
+	private File directory;
+	private BlobStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("gitservlet-blobstore").toFile();
+		Log log = new Log();
+		log.setLevel(Level.OFF);
+		this.store = new BlobStore(this.directory, 1024 * 1024, 1, log);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.store.shutdown();
+		FileUtils.delete(this.directory, FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+
+	public void testOpenReturnsStoredBlob() throws Exception {
+		assertNull(this.store.open(BLOB_ID));
+
+		this.store.write(BLOB_ID, new ObjectLoader.SmallObject(Constants.OBJ_BLOB, CONTENT));
+
+		BlobStore.StoredLoader stored = this.store.open(BLOB_ID);
+		assertNotNull(stored);
+		assertEquals(CONTENT.length, stored.getSize());
+		assertEquals(CONTENT.length, this.store.getSize());
+	}
+
+	public void testFileDeletedExternallyIsForgotten() throws Exception {
+		BlobStore.StoredLoader written = this.store.write(BLOB_ID, new ObjectLoader.SmallObject(Constants.OBJ_BLOB,
+				CONTENT));
+		assertTrue(written.getFile().delete());
+
+		assertNull(this.store.open(BLOB_ID));
+		assertEquals(0, this.store.getSize());
+
+		// and it can be stored again
+		this.store.write(BLOB_ID, new ObjectLoader.SmallObject(Constants.OBJ_BLOB, CONTENT));
+		assertNotNull(this.store.open(BLOB_ID));
+	}
+
+	public void testPinnedBlobIsNotTrimmed() throws Exception {
+		Log log = new Log();
+		log.setLevel(Level.OFF);
+		this.store.shutdown();
+		// room for a single blob
+		this.store = new BlobStore(this.directory, CONTENT.length, 1, log);
+
+		BlobStore.StoredLoader pinned = this.store.write(BLOB_ID, new ObjectLoader.SmallObject(Constants.OBJ_BLOB,
+				CONTENT));
+		pinned.pin();
+		Thread.sleep(10);
+		this.store.write(ObjectId.fromString("1123456789012345678901234567890123456789"),
+				new ObjectLoader.SmallObject(Constants.OBJ_BLOB, CONTENT));
+
+		assertTrue(pinned.getFile().isFile());
+		assertNotNull(this.store.open(BLOB_ID));
+	}
+
+	public void testForeignFilesAreLeftAlone() throws Exception {
+		this.store.write(BLOB_ID, new ObjectLoader.SmallObject(Constants.OBJ_BLOB, CONTENT));
+		this.store.shutdown();
+
+		File fanout = new File(this.directory, BLOB_ID.name().substring(0, 2));
+		File temp = new File(fanout, BLOB_ID.name() + "123456" + ".tmp");
+		File foreignInFanout = new File(fanout, "notes.txt");
+		File foreignDirectory = new File(this.directory, "data");
+		File foreign = new File(foreignDirectory, "important.tmp");
+		assertTrue(foreignDirectory.mkdir());
+		for (File file : new File[] { temp, foreignInFanout, foreign }) {
+			Files.write(file.toPath(), CONTENT);
+		}
+
+		Log log = new Log();
+		log.setLevel(Level.OFF);
+		this.store = new BlobStore(this.directory, 1024 * 1024, 1, log);
+
+		assertFalse(temp.exists());
+		assertTrue(foreignInFanout.exists());
+		assertTrue(foreign.exists());
+		assertNotNull(this.store.open(BLOB_ID));
+		assertEquals(CONTENT.length, this.store.getSize());
+	}
+
+	public void testStoreInBackground() throws Exception {
+		InMemoryRepository repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+		ObjectInserter inserter = repo.newObjectInserter();
+		ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, CONTENT);
+		inserter.flush();
+		inserter.close();
+
+		this.store.storeInBackground(repo, blobId);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		BlobStore.StoredLoader stored;
+		while ((stored = this.store.open(blobId)) == null) {
+			assertTrue("blob has not been stored in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals(new String(CONTENT, StandardCharsets.UTF_8),
+				new String(Files.readAllBytes(stored.getFile().toPath()), StandardCharsets.UTF_8));
+		repo.close();
+	}
+}
@@ -0,0 +1,86 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ByteRangeTest extends TestCase {
+	public void testSingleRange() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=0-99", 1000);
+		assertEquals(1, ranges.size());
+		assertEquals(0, ranges.get(0).getStart());
+		assertEquals(99, ranges.get(0).getEnd());
+		assertEquals(100, ranges.get(0).getLength());
+		assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+	}
+
+	public void testOpenAndSuffixRanges() {
+		ByteRange open = ByteRange.parse("bytes=900-", 1000).get(0);
+		assertEquals(900, open.getStart());
+		assertEquals(999, open.getEnd());
+
+		ByteRange suffix = ByteRange.parse("bytes=-100", 1000).get(0);
+		assertEquals(900, suffix.getStart());
+		assertEquals(999, suffix.getEnd());
+
+		// a suffix longer than the file covers the whole file
+		suffix = ByteRange.parse("bytes=-2000", 1000).get(0);
+		assertEquals(0, suffix.getStart());
+	}
+
+	public void testEndIsClampedToSize() {
+		assertEquals(999, ByteRange.parse("bytes=500-5000", 1000).get(0).getEnd());
+	}
+
+	public void testRangesAreSortedAndMerged() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-9, 10-19, 550-650", 1000);
+		assertEquals(2, ranges.size());
+		assertEquals(0, ranges.get(0).getStart());
+		assertEquals(19, ranges.get(0).getEnd());
+		assertEquals(500, ranges.get(1).getStart());
+		assertEquals(650, ranges.get(1).getEnd());
+	}
+
+	public void testEmptyElementsAreIgnored() {
+		assertEquals(2, ByteRange.parse("bytes=0-9,, 20-29", 1000).size());
+	}
+
+	public void testUnsatisfiableRanges() {
+		assertTrue(ByteRange.parse("bytes=1000-1099", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+	}
+
+	public void testInvalidHeaders() {
+		assertNull(ByteRange.parse("items=0-99", 1000));
+		assertNull(ByteRange.parse("bytes=99-0", 1000));
+		assertNull(ByteRange.parse("bytes=abc", 1000));
+		assertNull(ByteRange.parse("bytes=a-b", 1000));
+		assertNull(ByteRange.parse("bytes=--5", 1000));
+		assertNull(ByteRange.parse("bytes=-", 1000));
+		assertNull(ByteRange.parse("bytes=", 1000));
+		assertNull(ByteRange.parse("bytes=,", 1000));
+		assertNull(ByteRange.parse("bytes=+5-10", 1000));
+		assertNull(ByteRange.parse("bytes=5--10", 1000));
+		assertNull(ByteRange.parse("bytes=0-99999999999999999999", 1000));
+		// a single invalid element invalidates the whole header
+		assertNull(ByteRange.parse("bytes=0-9, --5", 1000));
+		// too many ranges
+		assertNull(ByteRange.parse("bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,"
+				+ "24-25,26-27,28-29,30-31,32-33", 1000));
+	}
+}
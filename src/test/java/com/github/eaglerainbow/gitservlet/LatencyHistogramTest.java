@@ -0,0 +1,56 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+	public void testCumulativeCounts() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0);
+		histogram.record(1500);
+		histogram.record(2048);
+		histogram.record(1L << 40);
+
+		long[] bounds = LatencyHistogram.getBounds();
+		long[] counts = histogram.getCumulativeCounts();
+		assertEquals(bounds.length + 1, counts.length);
+		assertEquals(1024, bounds[0]);
+		assertEquals(1L << 38, bounds[bounds.length - 1]);
+
+		assertEquals(1, counts[0]);
+		// 1500 ns is below 2048 ns, 2048 ns itself is not
+		assertEquals(2, counts[1]);
+		assertEquals(3, counts[2]);
+		assertEquals(3, counts[bounds.length - 1]);
+		assertEquals(4, counts[bounds.length]);
+		assertEquals(4, histogram.getCount());
+	}
+
+	public void testQuantile() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getQuantile(0.5));
+		for (int i = 0; i < 99; i++) {
+			histogram.record(5000);
+		}
+		histogram.record(1000000);
+
+		long median = histogram.getQuantile(0.5);
+		assertTrue(median >= 5000 && median <= 5000 * 1.25);
+		long max = histogram.getQuantile(1);
+		assertTrue(max >= 1000000 && max <= 1000000 * 1.25);
+	}
+}
@@ -0,0 +1,167 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * The caches of the RepoBase are shared by all repositories and keyed by
+ * object ids only; a commit id must therefore only be served from the
+ * repository which actually contains it.
+ */
+public class PinnedCommitTest extends TestCase {
+	private File baseDir;
+	private Log log;
+	private RepoBase repoBase;
+	private String commitId;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.baseDir = Files.createTempDirectory("gitservlet-pinned").toFile();
+		this.commitId = commit(new File(this.baseDir, "x"), "secret\n").getName();
+		commit(new File(this.baseDir, "y"), "public\n");
+
+		this.log = new Log();
+		this.log.setLevel(Level.OFF);
+		this.repoBase = new RepoBase(this.baseDir, this.log);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.repoBase.shutdown();
+		FileUtils.delete(this.baseDir, FileUtils.RECURSIVE | FileUtils.RETRY);
+	}
+
+	public void testCommitOfOtherRepositoryIsNotServed() throws Exception {
+		Map<String, String> headers = new HashMap<String, String>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		this.get("/x/" + this.commitId + "/file.txt", headers, body);
+		assertEquals("secret\n", new String(body.toByteArray(), StandardCharsets.UTF_8));
+		assertNotNull(headers.get("Cache-Control"));
+
+		// the commit and the file are cached now
+		headers.clear();
+		body.reset();
+		try {
+			this.get("/y/" + this.commitId + "/file.txt", headers, body);
+			fail("commit of repository x has been served from repository y");
+		} catch (LocalInternalServerException e) {
+			// expected
+		}
+		assertEquals(0, body.size());
+		assertNull(headers.get("Cache-Control"));
+	}
+
+	private void get(String path, Map<String, String> headers, ByteArrayOutputStream body) throws Exception {
+		new ServletRequest(this.log, path, request(), response(headers, body), this.repoBase, false).process();
+	}
+
+	private static RevCommit commit(File directory, String content) throws Exception {
+		Git git = Git.init().setDirectory(directory).call();
+		try {
+			Files.write(new File(directory, "file.txt").toPath(), content.getBytes(StandardCharsets.UTF_8));
+			git.add().addFilepattern("file.txt").call();
+			return git.commit().setMessage("test").setAuthor("test", "test@localhost")
+					.setCommitter("test", "test@localhost").call();
+		} finally {
+			git.close();
+		}
+	}
+
+	private static HttpServletRequest request() {
+		return proxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getMethod")) {
+					return "GET";
+				}
+				if (method.getName().equals("getDateHeader")) {
+					return -1L;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static HttpServletResponse response(final Map<String, String> headers, final ByteArrayOutputStream body) {
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				throw new IllegalStateException("asynchronous output is not supported by the test");
+			}
+		};
+		return proxy(HttpServletResponse.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getOutputStream")) {
+					return out;
+				}
+				if (method.getName().equals("setHeader")) {
+					headers.put((String) args[0], String.valueOf(args[1]));
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(PinnedCommitTest.class.getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+	private static final long RATE = 100L * 1024 * 1024;
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	public void testBurstPassesWithoutDelay() {
+		RateLimiter limiter = new RateLimiter(RATE, 0);
+		assertEquals(0, limiter.reserve(RATE, 0));
+	}
+
+	public void testDebtIsPaidOffAtTheRate() {
+		RateLimiter limiter = new RateLimiter(RATE, 0);
+		assertEquals(0, limiter.reserve(RATE, 0));
+		assertEquals(SECOND / 2, limiter.reserve(RATE / 2, 0));
+	}
+
+	public void testRefill() {
+		RateLimiter limiter = new RateLimiter(RATE, 0);
+		assertEquals(0, limiter.reserve(RATE, 0));
+		// half a second refills half of the bucket
+		assertEquals(0, limiter.reserve(RATE / 2, SECOND / 2));
+		assertEquals(SECOND / 4, limiter.reserve(RATE / 4, SECOND / 2));
+	}
+
+	public void testLongIdleRefillsBucketOnly() {
+		RateLimiter limiter = new RateLimiter(RATE, 0);
+		assertEquals(0, limiter.reserve(RATE, 0));
+
+		// an hour at this rate would overflow a long
+		long now = TimeUnit.HOURS.toNanos(1);
+		assertEquals(0, limiter.reserve(RATE, now));
+		// but no more than a second's worth has been credited
+		assertEquals(SECOND, limiter.reserve(RATE, now));
+	}
+
+	public void testIdleWhileInDebtIsCreditedCompletely() {
+		RateLimiter limiter = new RateLimiter(RATE, 0);
+		assertEquals(3 * SECOND, limiter.reserve(4 * RATE, 0));
+
+		// the debt has been paid off after three seconds
+		assertEquals(0, limiter.reserve(0, 3 * SECOND));
+		assertEquals(0, limiter.reserve(0, 3 * SECOND));
+		assertEquals(0, limiter.reserve(RATE, 4 * SECOND));
+	}
+}
@@ -0,0 +1,146 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+
+public class RefCacheTest extends TestCase {
+	private static final String BRANCH = Constants.R_HEADS + Constants.MASTER;
+
+	/**
+	 * a repository whose first reference lookup blocks, after having read
+	 * the reference, until it is released
+	 */
+	private static class BlockingRepository extends InMemoryRepository {
+		private final AtomicBoolean blocked = new AtomicBoolean();
+		private final CountDownLatch read = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		public BlockingRepository() {
+			super(new DfsRepositoryDescription("test"));
+		}
+
+		@Override
+		protected MemRefDatabase createRefDatabase() {
+			return new MemRefDatabase() {
+				@Override
+				public Ref firstExactRef(String... refs) throws IOException {
+					Ref ref = super.firstExactRef(refs);
+					if (BlockingRepository.this.blocked.compareAndSet(false, true)) {
+						BlockingRepository.this.read.countDown();
+						try {
+							BlockingRepository.this.release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+					}
+					return ref;
+				}
+			};
+		}
+	}
+
+	private BlockingRepository repo;
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.repo = new BlockingRepository();
+		this.executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.repo.release.countDown();
+		this.executor.shutdownNow();
+		this.repo.close();
+	}
+
+	public void testLookupAfterInvalidationDoesNotJoinOutdatedLookup() throws Exception {
+		ObjectId before = this.insert("before");
+		ObjectId after = this.insert("after");
+		this.update(before);
+
+		final RefCache cache = new RefCache(100);
+		Future<ObjectId> outdated = this.executor.submit(this.resolve(cache));
+		assertTrue(this.repo.read.await(10, TimeUnit.SECONDS));
+
+		// a push while the lookup is in flight
+		this.update(after);
+		cache.invalidate("test");
+
+		Future<ObjectId> current = this.executor.submit(this.resolve(cache));
+		ObjectId resolved;
+		try {
+			resolved = current.get(5, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			// has joined the outdated lookup
+			this.repo.release.countDown();
+			resolved = current.get(10, TimeUnit.SECONDS);
+		}
+		this.repo.release.countDown();
+
+		assertEquals(after, resolved);
+		assertEquals(before, outdated.get(10, TimeUnit.SECONDS));
+		// the outdated lookup has not been cached either
+		assertEquals(after, this.resolve(cache).call());
+	}
+
+	private Callable<ObjectId> resolve(final RefCache cache) {
+		return new Callable<ObjectId>() {
+			@Override
+			public ObjectId call() throws IOException {
+				return cache.resolve("test", RefCacheTest.this.repo, Constants.MASTER);
+			}
+		};
+	}
+
+	private ObjectId insert(String content) throws IOException {
+		ObjectInserter inserter = this.repo.newObjectInserter();
+		try {
+			ObjectId id = inserter.insert(Constants.OBJ_BLOB, Constants.encode(content));
+			inserter.flush();
+			return id;
+		} finally {
+			inserter.close();
+		}
+	}
+
+	private void update(ObjectId id) throws IOException {
+		RefUpdate update = this.repo.updateRef(BRANCH);
+		update.setNewObjectId(id);
+		RefUpdate.Result result = update.forceUpdate();
+		assertTrue(result.toString(), result == RefUpdate.Result.NEW || result == RefUpdate.Result.FORCED);
+	}
+}
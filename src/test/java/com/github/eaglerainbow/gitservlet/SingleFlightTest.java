@@ -0,0 +1,182 @@
+package com.github.eaglerainbow.gitservlet;
+/*
+ * Copyright 2015 Nico Schmoigl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class SingleFlightTest extends TestCase {
+	private final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.executor = Executors.newSingleThreadExecutor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.executor.shutdownNow();
+	}
+
+	public void testConcurrentLoadIsCoalesced() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final AtomicReference<String> coalesced = new AtomicReference<String>();
+
+		Future<String> leader = this.executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return SingleFlightTest.this.flight.load("key", new SingleFlight.Loader<String>() {
+					@Override
+					public String load() throws IOException {
+						loads.incrementAndGet();
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						return "value";
+					}
+				});
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					coalesced.set(SingleFlightTest.this.flight.load("key", new SingleFlight.Loader<String>() {
+						@Override
+						public String load() {
+							loads.incrementAndGet();
+							return "other";
+						}
+					}));
+				} catch (IOException e) {
+					coalesced.set(e.toString());
+				}
+			}
+		};
+		waiter.start();
+		while (this.flight.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		assertEquals("value", leader.get(10, TimeUnit.SECONDS));
+		waiter.join(10000);
+		assertEquals("value", coalesced.get());
+		assertEquals(1, loads.get());
+	}
+
+	public void testFailureReachesWaitersAndNextLoadRetries() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		Future<String> leader = this.executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return SingleFlightTest.this.flight.load("key", new SingleFlight.Loader<String>() {
+					@Override
+					public String load() throws IOException {
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						throw new IOException("broken");
+					}
+				});
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					SingleFlightTest.this.flight.load("key", constant("other"));
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+		waiter.start();
+		while (this.flight.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		try {
+			leader.get(10, TimeUnit.SECONDS);
+			fail("exception expected");
+		} catch (ExecutionException e) {
+			assertEquals("broken", e.getCause().getMessage());
+		}
+		waiter.join(10000);
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof IOException);
+		assertEquals("broken", failure.get().getMessage());
+
+		// the failed load has been removed, so the next call loads again
+		assertEquals("a", this.flight.load("key", constant("a")));
+	}
+
+	public void testNextLoadStartsAnew() throws Exception {
+		assertEquals("a", this.flight.load("key", constant("a")));
+		assertEquals("b", this.flight.load("key", constant("b")));
+		assertEquals(0, this.flight.getCoalescedCount());
+	}
+
+	public void testFailureIsPassedOn() throws Exception {
+		try {
+			this.flight.load("key", new SingleFlight.Loader<String>() {
+				@Override
+				public String load() throws IOException {
+					throw new IOException("broken");
+				}
+			});
+			fail("exception expected");
+		} catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+		assertEquals("a", this.flight.load("key", constant("a")));
+	}
+
+	private static SingleFlight.Loader<String> constant(final String value) {
+		return new SingleFlight.Loader<String>() {
+			@Override
+			public String load() {
+				return value;
+			}
+		};
+	}
+}